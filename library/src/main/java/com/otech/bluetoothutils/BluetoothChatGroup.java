@@ -0,0 +1,116 @@
+package com.otech.bluetoothutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of {@link BluetoothChatManager}s, one for every connected peer, that messages can be
+ * broadcast to. A broadcast message is framed once and the same read-only frames are queued on the
+ * connection of every peer, so sending to many peers does not encode the message for each of
+ * them. Peers using the same frame options share the frames, peers with different options get one
+ * encoding per distinct set of options. Every broadcast gets its own trace id, so a
+ * {@link ChatLatencyTracer} tells the broadcasts apart and matches the frames of one broadcast
+ * on every peer.
+ * <p>
+ * Every manager keeps managing its own connection, the group only keeps track of them. Like
+ * {@link BluetoothChatManager#write(byte[])}, a broadcast blocks while the write queue of a peer
+ * is full.
+ */
+public class BluetoothChatGroup {
+
+    private final CopyOnWriteArrayList<BluetoothChatManager> peers = new CopyOnWriteArrayList<>();
+    // Every broadcast carries its own trace id, the same on every peer
+    private final AtomicInteger traceIds = new AtomicInteger(new Random().nextInt());
+
+    /**
+     * Adds a peer to the group. Adding the same manager twice has no effect.
+     */
+    public void add(BluetoothChatManager peer) {
+        peers.addIfAbsent(peer);
+    }
+
+    public void remove(BluetoothChatManager peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Return the peers of the group.
+     */
+    public List<BluetoothChatManager> getPeers() {
+        return new ArrayList<>(peers);
+    }
+
+    /**
+     * Return the peers of the group that are currently connected.
+     */
+    public List<BluetoothChatManager> getConnectedPeers() {
+        List<BluetoothChatManager> connected = new ArrayList<>();
+        for (BluetoothChatManager peer : peers) {
+            if (peer.getState() == BluetoothChatManager.BluetoothChatServiceState.STATE_CONNECTED) {
+                connected.add(peer);
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Sends a message to every peer of the group.
+     *
+     * @param out The bytes to write, they must not be changed until the broadcast is done
+     * @return The status of the message on every peer. Peers that are not connected fail at once.
+     */
+    public ChatBroadcast broadcast(byte[] out) {
+        return broadcast(out, BluetoothChatManager.DEFAULT_MESSAGE_TYPE);
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer to every peer of the group. The position of the
+     * buffer is not changed.
+     *
+     * @param out The bytes to write
+     * @return The status of the message on every peer. Peers that are not connected fail at once.
+     */
+    public ChatBroadcast broadcast(ByteBuffer out) {
+        byte[] bytes;
+        if (out.hasArray() && out.arrayOffset() == 0 && out.position() == 0
+                && out.remaining() == out.array().length) {
+            bytes = out.array();
+        } else {
+            bytes = new byte[out.remaining()];
+            out.duplicate().get(bytes);
+        }
+        return broadcast(bytes, BluetoothChatManager.DEFAULT_MESSAGE_TYPE);
+    }
+
+    /**
+     * Sends a message of the given type to every peer of the group. Peers without message types
+     * enabled fail unless the type is the default type.
+     *
+     * @param out         The bytes to write, they must not be changed until the broadcast is done
+     * @param messageType Between 0 and {@link BluetoothChatManager#MAX_APPLICATION_MESSAGE_TYPE}
+     * @return The status of the message on every peer
+     */
+    public ChatBroadcast broadcast(byte[] out, int messageType) {
+        if (messageType < 0 || messageType > BluetoothChatManager.MAX_APPLICATION_MESSAGE_TYPE) {
+            throw new IllegalArgumentException("Invalid message type " + messageType);
+        }
+        return broadcastInternal(out, messageType, peers);
+    }
+
+    /**
+     * Sends a message of any type, including the reserved types, to the given peers.
+     */
+    ChatBroadcast broadcastInternal(byte[] out, int messageType, List<BluetoothChatManager> targets) {
+        List<BluetoothChatManager> snapshot = new ArrayList<>(targets);
+        ChatBroadcast broadcast = new ChatBroadcast(snapshot);
+        OutboundMessage message = new OutboundMessage(out, messageType, traceIds.incrementAndGet(), broadcast.callback);
+        for (BluetoothChatManager peer : snapshot) {
+            peer.write(message);
+        }
+        return broadcast;
+    }
+}
@@ -11,11 +11,26 @@ import android.os.Handler;
 import android.support.annotation.RequiresPermission;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
@@ -26,20 +41,73 @@ import java.util.UUID;
 public class BluetoothChatManager {
 
 
+    /**
+     * The message type of messages written without a type.
+     */
+    public static final int DEFAULT_MESSAGE_TYPE = 0;
+
+    /**
+     * The highest message type available to applications, higher types are reserved.
+     */
+    public static final int MAX_APPLICATION_MESSAGE_TYPE = 127;
+
+    // Reserved message types
+    static final int TELEMETRY_MESSAGE_TYPE = 128;
+    static final int PUBSUB_MESSAGE_TYPE = 129;
+
     // Debugging
     private final String TAG = "BluetoothChatManager";
 
+    // Default largest payload of a single fragment when fragmentation is enabled
+    private static final int DEFAULT_FRAGMENT_SIZE = 4096;
+
+    // Writers block while this many bytes are waiting to be written
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    // Bytes copied from the shared read-only frames per write to the socket
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    // Largest number of interleaved messages being reassembled at the same time
+    private static final int MAX_PARTIAL_MESSAGES = 256;
+
+    // Default largest frame or reassembled message kept in memory
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Default time to wait for the handshake of the peer before falling back to legacy frames
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 3000;
+
+    // The hellos have nothing but the length in their header, whatever the header length
+    private static final ChatFrameFormat HELLO_FORMAT = new ChatFrameFormat(ChatFrameFormat.LENGTH_FIELD_LENGTH,
+            false, false, false, DEFAULT_FRAGMENT_SIZE, false);
+
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Context context;
     private final Handler mainThread;
-    private final BluetoothChatServiceListener listener;
+    private final Executor mainThreadExecutor;
+    private final List<ListenerRegistration> listeners = new CopyOnWriteArrayList<>();
     private final int headerLength;
 
     private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
+    private Thread mConnectThread;
     private ConnectedThread mConnectedThread;
     private BluetoothChatServiceState mState;
+    private volatile ChatLatencyTracer latencyTracer;
+    private volatile ChatSessionRecorder sessionRecorder;
+    private volatile boolean frameChecksumEnabled;
+    private volatile boolean fragmentationEnabled;
+    private volatile int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+    private volatile boolean messageTypesEnabled;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private volatile int maxSpilledFrameSize;
+    private volatile File spillDirectory;
+    private volatile boolean handshakeEnabled;
+    private volatile long handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+    private volatile int peerProtocolVersion;
+    private volatile ChatRateLimiter rateLimiter;
+    private volatile ChatRateLimiter globalRateLimiter;
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private int connectionSerial;
 
 
     /**
@@ -52,9 +120,12 @@ public class BluetoothChatManager {
         this.context = context;
         this.mAdapter = BluetoothAdapter.getDefaultAdapter();
         this.mState = BluetoothChatServiceState.STATE_NONE;
-        this.listener = handler;
         this.mainThread = new Handler(context.getMainLooper());
+        this.mainThreadExecutor = newHandlerExecutor(mainThread);
         this.headerLength = 4;
+        if (handler != null) {
+            addListener(handler, mainThreadExecutor);
+        }
 
     }
 
@@ -69,10 +140,76 @@ public class BluetoothChatManager {
         this.context = context;
         this.mAdapter = BluetoothAdapter.getDefaultAdapter();
         this.mState = BluetoothChatServiceState.STATE_NONE;
-        this.listener = handler;
         this.mainThread = new Handler(context.getMainLooper());
+        this.mainThreadExecutor = newHandlerExecutor(mainThread);
         this.headerLength = headerLength;
+        if (handler != null) {
+            addListener(handler, mainThreadExecutor);
+        }
+
+    }
+
+    private static Executor newHandlerExecutor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Registers a listener called on the UI thread.
+     *
+     * @param listener Receives the connection events and all the messages
+     */
+    public void addListener(BluetoothChatServiceListener listener) {
+        addListener(listener, mainThreadExecutor);
+    }
 
+    /**
+     * Registers a listener called on the given executor. Every listener is called on its own
+     * executor, so a slow listener only holds up its own executor and not the other listeners or
+     * the connection threads. Use a single threaded executor to receive the calls in order.
+     *
+     * @param listener     Receives the connection events and the messages of the given types
+     * @param executor     Runs the listener calls
+     * @param messageTypes The message types the listener receives, none to receive all messages
+     * @throws IllegalArgumentException If a message type is not between 0 and 255
+     * @see #setMessageTypesEnabled(boolean)
+     */
+    public void addListener(BluetoothChatServiceListener listener, Executor executor, int... messageTypes) {
+        listeners.add(new ListenerRegistration(listener, executor, messageTypes));
+    }
+
+    /**
+     * Unregisters all the registrations of the given listener, including the one passed to the
+     * constructor. Calls already handed to its executor may still run.
+     */
+    public void removeListener(BluetoothChatServiceListener listener) {
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener == listener) {
+                listeners.remove(registration);
+            }
+        }
+    }
+
+    private void notifyListeners(final ListenerCall call) {
+        for (final ListenerRegistration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    call.call(registration.listener);
+                }
+            });
+        }
+    }
+
+    /**
+     * Return a number that changes every time a new connection is made.
+     */
+    synchronized int getConnectionSerial() {
+        return connectionSerial;
     }
 
     /**
@@ -82,6 +219,240 @@ public class BluetoothChatManager {
         return mState;
     }
 
+    /**
+     * Enables per-frame latency tracing. The tracer adds a trace field to the frame header, so it
+     * must be set on both sides before the connection is made. Pass null to disable tracing.
+     *
+     * @param tracer Records the trace events and latency histograms
+     * @see ChatLatencyTracer
+     */
+    public void setLatencyTracer(ChatLatencyTracer tracer) {
+        this.latencyTracer = tracer;
+    }
+
+    /**
+     * Return the latency tracer or null if tracing is disabled.
+     */
+    public ChatLatencyTracer getLatencyTracer() {
+        return latencyTracer;
+    }
+
+    /**
+     * Appends a CRC32C checksum to every frame and verifies it on every received frame. A corrupt
+     * frame is never passed to the listener, the connection is dropped instead. It changes the
+     * frame layout, so it must be enabled on both sides before the connection is made.
+     *
+     * @param enabled Whether frames carry a checksum
+     */
+    public void setFrameChecksumEnabled(boolean enabled) {
+        this.frameChecksumEnabled = enabled;
+    }
+
+    /**
+     * Return whether frames carry a CRC32C checksum.
+     */
+    public boolean isFrameChecksumEnabled() {
+        return frameChecksumEnabled;
+    }
+
+    /**
+     * Splits messages larger than the fragment size into fragments and interleaves the fragments
+     * of all the queued messages, so small messages are not held up behind a large transfer. The
+     * receiver reassembles the fragments, but messages may complete in a different order than
+     * they were written. It changes the frame layout, so it must be enabled on both sides before
+     * the connection is made.
+     *
+     * @param enabled Whether messages are fragmented
+     * @see #setFragmentSize(int)
+     */
+    public void setFragmentationEnabled(boolean enabled) {
+        this.fragmentationEnabled = enabled;
+    }
+
+    /**
+     * Return whether messages are fragmented.
+     */
+    public boolean isFragmentationEnabled() {
+        return fragmentationEnabled;
+    }
+
+    /**
+     * Set the largest payload of a single fragment. Smaller fragments lower the latency of small
+     * messages during large transfers at the cost of more header overhead. Only the sending side
+     * uses it, peers may use different fragment sizes.
+     *
+     * @param fragmentSize Size in bytes, 4096 by default
+     */
+    public void setFragmentSize(int fragmentSize) {
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("Fragment size must be positive");
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    /**
+     * Exchanges a hello frame with the peer when a connection opens, so both sides use the frame
+     * options they both want. With the handshake enabled, checksums, fragmentation, message types
+     * and tracing are used only when both sides enabled them instead of having to match. A peer
+     * that does not handshake is detected by its first frame, or by not sending anything before
+     * the handshake timeout, and is talked to with legacy frames. The hello is framed with nothing
+     * but the 4 byte length in its header, so such a peer must use the default header length and
+     * none of the frame options, it then receives the hello as a regular message. A manager
+     * constructed with a larger header length only talks to peers that handshake, it drops the
+     * connection of a peer that does not and keeps waiting for the hello of a silent peer. Writes
+     * larger than a handshaking peer accepts fail instead of being sent.
+     *
+     * @param enabled Whether to handshake on new connections
+     * @see #setHandshakeTimeout(long)
+     */
+    public void setHandshakeEnabled(boolean enabled) {
+        this.handshakeEnabled = enabled;
+    }
+
+    public boolean isHandshakeEnabled() {
+        return handshakeEnabled;
+    }
+
+    /**
+     * Set how long a connection waits for the hello of the peer before it falls back to legacy
+     * frames. Messages written meanwhile are queued. A hello arriving later drops the connection,
+     * since the peer has already picked another frame format.
+     *
+     * @param timeoutMillis Timeout in milliseconds, 3 seconds by default
+     */
+    public void setHandshakeTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Handshake timeout must be positive");
+        }
+        this.handshakeTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Return the protocol version of the peer sent in its handshake, or 0 if the peer did not
+     * handshake or the handshake is not done yet.
+     */
+    public int getPeerProtocolVersion() {
+        return peerProtocolVersion;
+    }
+
+    /**
+     * Limits the rate at which this connection writes. Frames wait for the limiter right before
+     * they are written, so small messages interleaved with a large fragmented message are limited
+     * together with it. The limiter can be replaced or changed while connected.
+     *
+     * @param rateLimiter The limiter of this connection, null for no limit
+     * @see #setGlobalRateLimiter(ChatRateLimiter)
+     */
+    public void setRateLimiter(ChatRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public ChatRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limits the combined rate of all the managers given the same limiter, in addition to the
+     * limiter of this connection.
+     *
+     * @param globalRateLimiter A limiter shared by several managers, null for no limit
+     */
+    public void setGlobalRateLimiter(ChatRateLimiter globalRateLimiter) {
+        this.globalRateLimiter = globalRateLimiter;
+    }
+
+    public ChatRateLimiter getGlobalRateLimiter() {
+        return globalRateLimiter;
+    }
+
+    /**
+     * Return the total time the writer of this manager waited for its rate limiters, in
+     * nanoseconds.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    /**
+     * Set the largest frame read into memory. A larger frame is spilled to a file if it fits
+     * the maximum spilled frame size, otherwise the connection is dropped, so a corrupt or
+     * malicious length can not make the reader run out of memory. It also limits the size of
+     * reassembled messages when fragmentation is enabled.
+     *
+     * @param maxFrameSize Size in bytes, 16 MB by default
+     * @see #setMaxSpilledFrameSize(int)
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("Maximum frame size must be positive");
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Set the largest frame spilled to a file when it does not fit the maximum frame size. Spilled
+     * frames are delivered to the listeners implementing {@link BluetoothChatServiceFileListener}.
+     * Frames are only spilled when fragmentation is disabled, fragmented messages larger than the
+     * maximum frame size drop the connection.
+     *
+     * @param maxSpilledFrameSize Size in bytes, 0 by default which drops the connection on any
+     *                            frame larger than the maximum frame size
+     * @see #setSpillDirectory(File)
+     */
+    public void setMaxSpilledFrameSize(int maxSpilledFrameSize) {
+        if (maxSpilledFrameSize < 0) {
+            throw new IllegalArgumentException("Maximum spilled frame size must not be negative");
+        }
+        this.maxSpilledFrameSize = maxSpilledFrameSize;
+    }
+
+    public int getMaxSpilledFrameSize() {
+        return maxSpilledFrameSize;
+    }
+
+    /**
+     * Set the directory spilled frames are written to.
+     *
+     * @param spillDirectory The directory, the cache directory of the context by default
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds a message type to every frame, so listeners can choose which messages they receive. It
+     * changes the frame layout, so it must be enabled on both sides before the connection is made.
+     *
+     * @param enabled Whether frames carry a message type
+     * @see #write(byte[], int)
+     * @see #addListener(BluetoothChatServiceListener, Executor, int...)
+     */
+    public void setMessageTypesEnabled(boolean enabled) {
+        this.messageTypesEnabled = enabled;
+    }
+
+    /**
+     * Return whether frames carry a message type.
+     */
+    public boolean isMessageTypesEnabled() {
+        return messageTypesEnabled;
+    }
+
+    /**
+     * Records every frame sent and received by this manager. Recording can be started and stopped
+     * while connected. Pass null to stop recording, the recorder is not closed by the manager.
+     *
+     * @param recorder Writes the frames to a session file
+     * @see ChatSessionReplayer
+     */
+    public void setSessionRecorder(ChatSessionRecorder recorder) {
+        this.sessionRecorder = recorder;
+    }
+
     /**
      * Set the current state of the chat connection
      *
@@ -92,14 +463,12 @@ public class BluetoothChatManager {
         mState = state;
 
         // Give the new state to the Handler so the UI Activity can update
-        if (listener != null) {
-            mainThread.post(new Runnable() {
-                @Override
-                public void run() {
-                    listener.chatServiceStateChanged(state);
-                }
-            });
-        }
+        notifyListeners(new ListenerCall() {
+            @Override
+            public void call(BluetoothChatServiceListener listener) {
+                listener.chatServiceStateChanged(state);
+            }
+        });
 
     }
 
@@ -167,6 +536,42 @@ public class BluetoothChatManager {
         setState(BluetoothChatServiceState.STATE_CONNECTING);
     }
 
+    /**
+     * Start connecting to a remote device with several socket types and service record UUIDs at
+     * the same time. The first attempt that connects is kept and the others are cancelled, so a
+     * socket type that takes long to fail does not delay the others. If all of them fail the
+     * manager falls back to listening with the first attempt.
+     *
+     * @param device   The BluetoothDevice to connect
+     * @param attempts The socket types and UUIDs to try
+     */
+    @RequiresPermission(allOf = {Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN})
+    public synchronized void connect(BluetoothDevice device, List<ConnectAttempt> attempts) {
+        if (attempts.isEmpty()) {
+            throw new IllegalArgumentException("No connect attempts");
+        }
+        Log.d(TAG, "connect to: " + device + " with " + attempts);
+
+        // Cancel any thread attempting to make a connection
+        if (mState == BluetoothChatServiceState.STATE_CONNECTING) {
+            if (mConnectThread != null) {
+                mConnectThread.interrupt();
+                mConnectThread = null;
+            }
+        }
+
+        // Cancel any thread currently running a connection
+        if (mConnectedThread != null) {
+            mConnectedThread.interrupt();
+            mConnectedThread = null;
+        }
+
+        // Start the thread racing the attempts
+        mConnectThread = new RaceConnectThread(device, new ArrayList<>(attempts));
+        mConnectThread.start();
+        setState(BluetoothChatServiceState.STATE_CONNECTING);
+    }
+
     /**
      * Stop all threads
      */
@@ -194,18 +599,75 @@ public class BluetoothChatManager {
      * Write to the ConnectedThread in an unsynchronized manner
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ConnectedThread#write(byte[], int)
      */
     public void write(byte[] out) {
+        write(out, DEFAULT_MESSAGE_TYPE);
+    }
+
+    /**
+     * Write a message of the given type to the ConnectedThread in an unsynchronized manner
+     *
+     * @param out         The bytes to write
+     * @param messageType Between 0 and {@link #MAX_APPLICATION_MESSAGE_TYPE}
+     * @see #setMessageTypesEnabled(boolean)
+     */
+    public void write(byte[] out, int messageType) {
+        if (messageType < 0 || messageType > MAX_APPLICATION_MESSAGE_TYPE) {
+            throw new IllegalArgumentException("Invalid message type " + messageType);
+        }
+        writeInternal(out, messageType);
+    }
+
+    /**
+     * Write a message of any type, including the reserved types.
+     *
+     * @return false if the message was dropped because there is no connection
+     */
+    boolean writeInternal(byte[] out, int messageType) {
+        if (messageType != DEFAULT_MESSAGE_TYPE && !messageTypesEnabled) {
+            throw new IllegalStateException("Message types are not enabled");
+        }
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != BluetoothChatServiceState.STATE_CONNECTED) return;
+            if (mState != BluetoothChatServiceState.STATE_CONNECTED) return false;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        return r.write(out, messageType);
+    }
+
+    /**
+     * Write a message without waiting for room in the write queue. Like {@link #write(byte[])},
+     * the message is dropped if there is no connection.
+     *
+     * @return false if the write queue is full and the message was not written
+     */
+    boolean offer(byte[] out) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != BluetoothChatServiceState.STATE_CONNECTED) return true;
+            r = mConnectedThread;
+        }
+        return r.offer(out, DEFAULT_MESSAGE_TYPE);
+    }
+
+    /**
+     * Queue a message that may be shared with other managers. Its callback is told whether it was
+     * written.
+     */
+    void write(OutboundMessage message) {
+        ConnectedThread r;
+        synchronized (this) {
+            r = mState == BluetoothChatServiceState.STATE_CONNECTED ? mConnectedThread : null;
+        }
+        if (r == null || (message.type != DEFAULT_MESSAGE_TYPE && !messageTypesEnabled)) {
+            message.failed(this);
+            return;
+        }
+        r.write(message);
     }
 
     /**
@@ -235,6 +697,19 @@ public class BluetoothChatManager {
         connect(device, uuid, secure);
     }
 
+    /**
+     * Establish connection with other device, racing several socket types and UUIDs
+     *
+     * @param address  Device address.
+     * @param attempts The socket types and UUIDs to try
+     * @see #connect(BluetoothDevice, List)
+     */
+    @RequiresPermission(allOf = {Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN})
+    public void connectDevice(String address, List<ConnectAttempt> attempts) {
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        connect(device, attempts);
+    }
+
     /**
      * Start the ConnectedThread to begin managing a Bluetooth connection
      *
@@ -271,17 +746,55 @@ public class BluetoothChatManager {
         // Start the thread to manage the connection and perform transmissions
         mConnectedThread = new ConnectedThread(socket, socketType, uuid, secure);
         mConnectedThread.start();
+        connectionSerial++;
 
-        // Send the name of the connected device back to the UI Activity
-        if (listener != null) {
-            mainThread.post(new Runnable() {
-                @Override
-                public void run() {
-                    listener.chatServiceConnectedTo(device);
-                }
-            });
+        connected(device);
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a connection over plain streams, for example
+     * a loopback peer. The connection is not re-established by listening when it is lost.
+     *
+     * @param inStream   The stream frames are read from
+     * @param outStream  The stream frames are written to
+     * @param closeable  Closed when the connection ends
+     * @param streamType Describes the streams in the logs
+     * @see ChatLoopback
+     */
+    synchronized void connected(InputStream inStream, OutputStream outStream, Closeable closeable, String streamType) {
+        Log.d(TAG, "connected, Stream Type:" + streamType);
+
+        if (mConnectThread != null) {
+            mConnectThread.interrupt();
+            mConnectThread = null;
         }
 
+        if (mConnectedThread != null) {
+            mConnectedThread.interrupt();
+            mConnectedThread = null;
+        }
+
+        if (mInsecureAcceptThread != null) {
+            mInsecureAcceptThread.interrupt();
+            mInsecureAcceptThread = null;
+        }
+
+        mConnectedThread = new ConnectedThread(null, inStream, outStream, closeable, streamType, null, false);
+        mConnectedThread.start();
+        connectionSerial++;
+
+        connected((BluetoothDevice) null);
+    }
+
+    private void connected(final BluetoothDevice device) {
+        // Send the name of the connected device back to the UI Activity
+        notifyListeners(new ListenerCall() {
+            @Override
+            public void call(BluetoothChatServiceListener listener) {
+                listener.chatServiceConnectedTo(device);
+            }
+        });
+
 
         setState(BluetoothChatServiceState.STATE_CONNECTED);
     }
@@ -292,67 +805,185 @@ public class BluetoothChatManager {
     @RequiresPermission(Manifest.permission.BLUETOOTH)
     private void connectionFailed(UUID uuid, boolean secure) {
         // Send a failure message back to the Activity
-        if (listener != null) {
-            mainThread.post(new Runnable() {
-                @Override
-                public void run() {
-                    listener.chatError("Unable to connect device");
+        notifyListeners(new ListenerCall() {
+            @Override
+            public void call(BluetoothChatServiceListener listener) {
+                listener.chatError("Unable to connect device");
+            }
+        });
+
+
+        // Start the service over to restart listening mode
+        BluetoothChatManager.this.startListening(uuid, secure);
+    }
+
+    /**
+     * Indicate that the connection was lost and notify the UI Activity.
+     *
+     * @param uuid    The UUID to listen to again or null to stay disconnected
+     * @param message The error message to send to the UI Activity
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH)
+    private void connectionLost(UUID uuid, boolean secure, final String message) {
+        // Send a failure message back to the Activity
+        notifyListeners(new ListenerCall() {
+            @Override
+            public void call(BluetoothChatServiceListener listener) {
+                listener.chatError(message);
+            }
+        });
+
+
+        if (uuid == null) {
+            setState(BluetoothChatServiceState.STATE_NONE);
+            return;
+        }
+
+        // Start the service over to restart listening mode
+        BluetoothChatManager.this.startListening(uuid, secure);
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @return The payload, or null if the frame was spilled to a file
+     * @throws EOFException If the stream ended
+     */
+    private byte[] readBytes(InputStream inStream, byte[] headerBuffer, byte[] bodyBuffer,
+                             ChatFrameFormat format, Checksum checksum) throws IOException {
+        int bytes = 0;
+
+        // The header may arrive split over several reads
+        while (bytes < headerBuffer.length) {
+            int read = inStream.read(headerBuffer, bytes, headerBuffer.length - bytes);
+            if (read == -1) {
+                throw new EOFException("Stream ended before the end of the frame header");
+            }
+            bytes += read;
+        }
+
+        int length = ByteBuffer.wrap(headerBuffer).getInt();
+        Log.i(TAG, "Received: " + length + " bytes");
+        if (length < 0) {
+            throw new ChatFrameException("Invalid frame length " + length);
+        }
+        if (length > maxFrameSize) {
+            if (length > maxSpilledFrameSize || format.fragmentation) {
+                throw new ChatFrameException("Frame of " + length + " bytes exceeds the maximum frame size");
+            }
+            File file = spill(inStream, headerBuffer, length, checksum);
+            fileRead(file, format.readMessageType(headerBuffer));
+            return null;
+        }
+
+        byte[] bytesArrays = new byte[length];
+        int byteRead = 0;
+        while (byteRead < length) {
+            bytes = inStream.read(bodyBuffer, 0, Math.min(length - byteRead, bodyBuffer.length));
+            if (bytes == -1) {
+                throw new EOFException("Stream ended before the end of the frame");
+            }
+            System.arraycopy(bodyBuffer, 0, bytesArrays, byteRead, bytes);
+            byteRead += bytes;
+        }
+        if (checksum != null) {
+            verifyChecksum(inStream, headerBuffer, bytesArrays, checksum);
+        }
+        return bytesArrays;
+    }
+
+    private void verifyChecksum(InputStream inStream, byte[] headerBuffer, byte[] bytes, Checksum checksum) throws IOException {
+        checksum.reset();
+        checksum.update(headerBuffer, 0, headerBuffer.length);
+        checksum.update(bytes, 0, bytes.length);
+        verifyChecksum(inStream, checksum);
+    }
+
+    /**
+     * Reads the checksum trailer of a frame and compares it to the checksum of the frame.
+     */
+    private void verifyChecksum(InputStream inStream, Checksum checksum) throws IOException {
+        byte[] trailer = new byte[ChatFrameFormat.CHECKSUM_LENGTH];
+        int read = 0;
+        while (read < trailer.length) {
+            int count = inStream.read(trailer, read, trailer.length - read);
+            if (count == -1) {
+                throw new IOException("Stream ended before the frame checksum");
+            }
+            read += count;
+        }
+
+        if ((int) checksum.getValue() != ByteBuffer.wrap(trailer).getInt()) {
+            throw new ChatFrameException("Frame checksum mismatch");
+        }
+    }
+
+    /**
+     * Streams the payload of a frame to a new file in the spill directory.
+     */
+    private File spill(InputStream inStream, byte[] headerBuffer, int length, Checksum checksum) throws IOException {
+        File directory = spillDirectory != null ? spillDirectory : context.getCacheDir();
+        File file = File.createTempFile("frame", ".bin", directory);
+        Log.i(TAG, "Spilling frame of " + length + " bytes to " + file);
+
+        boolean complete = false;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            if (checksum != null) {
+                checksum.reset();
+                checksum.update(headerBuffer, 0, headerBuffer.length);
+            }
+            byte[] buffer = new byte[8192];
+            int remaining = length;
+            while (remaining > 0) {
+                int read = inStream.read(buffer, 0, Math.min(remaining, buffer.length));
+                if (read == -1) {
+                    throw new IOException("Stream ended before the end of the frame");
                 }
-            });
+                out.write(buffer, 0, read);
+                if (checksum != null) {
+                    checksum.update(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+            if (checksum != null) {
+                verifyChecksum(inStream, checksum);
+            }
+            complete = true;
+        } finally {
+            out.close();
+            if (!complete && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
         }
-
-
-        // Start the service over to restart listening mode
-        BluetoothChatManager.this.startListening(uuid, secure);
+        return file;
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Hands a spilled frame to the file listeners of its message type, or deletes it if there are
+     * none.
      */
-    @RequiresPermission(Manifest.permission.BLUETOOTH)
-    private void connectionLost(UUID uuid, boolean secure) {
-        // Send a failure message back to the Activity
-        if (listener != null) {
-            mainThread.post(new Runnable() {
+    private void fileRead(final File file, int messageType) {
+        boolean delivered = false;
+        for (final ListenerRegistration registration : listeners) {
+            if (!registration.accepts(messageType)
+                    || !(registration.listener instanceof BluetoothChatServiceFileListener)) {
+                continue;
+            }
+            delivered = true;
+            registration.executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    listener.chatError("Device connection was lost");
+                    ((BluetoothChatServiceFileListener) registration.listener).chatServiceFileRead(file);
                 }
             });
         }
-
-
-        // Start the service over to restart listening mode
-        BluetoothChatManager.this.startListening(uuid, secure);
-    }
-
-    private byte[] readBytes(InputStream inStream, byte[] headerBuffer, byte[] bodyBuffer) throws IOException {
-        int bytesAvailable;
-        int bufferSize;
-        int bytes = inStream.read(headerBuffer);
-
-        if (bytes != -1) {
-            int length = ByteBuffer.wrap(headerBuffer).getInt();
-            Log.i(TAG, "Received: " + length + " bytes");
-
-            byte[] bytesArrays = new byte[length];
-            bytesAvailable = length;
-            int byteRead = 0;
-            try {
-                while (bytes > 0) {
-                    bufferSize = Math.min(bytesAvailable, bodyBuffer.length);
-                    bytes = inStream.read(bodyBuffer, 0, bufferSize);
-                    System.arraycopy(bodyBuffer, 0, bytesArrays, byteRead, bytes);
-                    byteRead += bytes;
-                    bytesAvailable -= bytes;
-                }
-                return bytesArrays;
-
-            } catch (Exception e) {
-                Log.e(TAG, "Exception while reading", e);
+        if (!delivered) {
+            Log.w(TAG, "No listener for the spilled frame " + file);
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
             }
         }
-        return null;
     }
 
     /**
@@ -368,6 +999,10 @@ public class BluetoothChatManager {
     public interface BluetoothChatServiceListener {
         void chatServiceStateChanged(BluetoothChatServiceState state);
 
+        /**
+         * Called once a message was written to the connection, with a copy of the payload that
+         * was passed to write, without the frame header or checksum, however many frames it took.
+         */
         void chatServiceMessageWritten(byte[] bytes);
 
         void chatServiceMessageRead(byte[] message);
@@ -377,6 +1012,21 @@ public class BluetoothChatManager {
         void chatError(String message);
     }
 
+    /**
+     * A listener that also receives the frames spilled to a file because they were larger than the
+     * maximum frame size.
+     *
+     * @see #setMaxSpilledFrameSize(int)
+     */
+    public interface BluetoothChatServiceFileListener extends BluetoothChatServiceListener {
+        /**
+         * Called with the payload of a spilled frame. The file belongs to the listener, which
+         * should move or delete it once it is handled. When several file listeners receive the
+         * same frame they share the file.
+         */
+        void chatServiceFileRead(File file);
+    }
+
     /**
      * This thread runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted
@@ -462,6 +1112,156 @@ public class BluetoothChatManager {
         }
     }
 
+    /**
+     * This thread runs while racing several outgoing connection attempts to the same device. Each
+     * attempt connects on its own thread; the first socket that connects is handed to the
+     * ConnectedThread and the sockets of the other attempts are closed, which aborts their
+     * connect().
+     */
+    private class RaceConnectThread extends Thread {
+        private final BluetoothDevice mmDevice;
+        private final List<ConnectAttempt> attempts;
+        private final BluetoothSocket[] sockets;
+        // Not the monitor of the thread, which Thread.join and thread termination use
+        private final Object lock = new Object();
+        private int failed;
+        private int winner = -1;
+        private boolean cancelled;
+
+        RaceConnectThread(BluetoothDevice device, List<ConnectAttempt> attempts) {
+            this.mmDevice = device;
+            this.attempts = attempts;
+            this.sockets = new BluetoothSocket[attempts.size()];
+        }
+
+        @Override
+        @RequiresPermission(allOf = {Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN})
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread racing " + attempts.size() + " attempts");
+            setName("RaceConnectThread");
+            final long start = System.currentTimeMillis();
+
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
+
+            for (int i = 0; i < attempts.size(); i++) {
+                final int index = i;
+                new Thread("ConnectAttempt" + attempts.get(i).getSocketType()) {
+                    @Override
+                    @RequiresPermission(Manifest.permission.BLUETOOTH)
+                    public void run() {
+                        attempt(index);
+                    }
+                }.start();
+            }
+
+            synchronized (lock) {
+                try {
+                    while (winner == -1 && failed < sockets.length && !cancelled) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+            }
+            closeLosers();
+
+            if (cancelled) {
+                if (winner != -1) {
+                    close(sockets[winner]);
+                }
+                return;
+            }
+            if (winner == -1) {
+                ConnectAttempt first = attempts.get(0);
+                connectionFailed(first.getUuid(), first.isSecure());
+                return;
+            }
+
+            ConnectAttempt attempt = attempts.get(winner);
+            Log.i(TAG, attempt + " won after " + (System.currentTimeMillis() - start) + " ms");
+
+            // Reset the ConnectThread because we're done
+            synchronized (BluetoothChatManager.this) {
+                mConnectThread = null;
+            }
+
+            // Start the connected thread
+            connected(sockets[winner], mmDevice, attempt.getSocketType(), attempt.getUuid(), attempt.isSecure());
+        }
+
+        @RequiresPermission(Manifest.permission.BLUETOOTH)
+        private void attempt(int index) {
+            ConnectAttempt attempt = attempts.get(index);
+            BluetoothSocket socket = null;
+            try {
+                if (attempt.isSecure()) {
+                    socket = mmDevice.createRfcommSocketToServiceRecord(attempt.getUuid());
+                } else {
+                    socket = mmDevice.createInsecureRfcommSocketToServiceRecord(attempt.getUuid());
+                }
+                synchronized (lock) {
+                    if (winner != -1 || cancelled) {
+                        close(socket);
+                        return;
+                    }
+                    sockets[index] = socket;
+                }
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                socket.connect();
+            } catch (IOException e) {
+                Log.e(TAG, attempt + " unable to connect", e);
+                close(socket);
+                synchronized (lock) {
+                    failed++;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                if (winner == -1 && !cancelled) {
+                    winner = index;
+                    lock.notifyAll();
+                    return;
+                }
+            }
+            // Another attempt won
+            close(socket);
+        }
+
+        private void closeLosers() {
+            synchronized (lock) {
+                for (int i = 0; i < sockets.length; i++) {
+                    if (i != winner && sockets[i] != null) {
+                        close(sockets[i]);
+                    }
+                }
+            }
+        }
+
+        private void close(BluetoothSocket socket) {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignored
+            }
+        }
+
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            synchronized (lock) {
+                cancelled = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
@@ -536,43 +1336,68 @@ public class BluetoothChatManager {
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions and owns the thread writing the outgoing ones.
      */
     private class ConnectedThread extends Thread {
         private final BluetoothSocket mmSocket;
+        private final Closeable mmCloseable;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
         private final UUID uuid;
         private final boolean secure;
+        private final ChatLatencyTracer tracer;
+        // The format with the options this side wants, negotiated down by the handshake
+        private final ChatFrameFormat wantedFormat;
+        private final boolean handshake;
+        private ChatFrameFormat format;
+        private final ConnectedWriteThread writer;
+        private final Map<Integer, ByteArrayOutputStream> partialMessages = new HashMap<>();
+        private ChatTelemetryStream.Decoder telemetry;
 
         @RequiresPermission(Manifest.permission.BLUETOOTH)
         ConnectedThread(BluetoothSocket socket, String socketType, UUID uuid, boolean secure) {
+            this(socket, getInputStream(socket), getOutputStream(socket), socket, socketType, uuid, secure);
+        }
+
+        ConnectedThread(BluetoothSocket socket, InputStream inStream, OutputStream outStream,
+                        Closeable closeable, String socketType, UUID uuid, boolean secure) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
             this.mmSocket = socket;
+            this.mmCloseable = closeable;
+            this.mmInStream = inStream;
             this.uuid = uuid;
             this.secure = secure;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "ConnectedThread()-> Unable to get the BluetoothSocket input and output streams", e);
+            this.tracer = latencyTracer;
+            this.wantedFormat = new ChatFrameFormat(headerLength, tracer != null, frameChecksumEnabled,
+                    fragmentationEnabled, fragmentSize, messageTypesEnabled);
+            this.handshake = handshakeEnabled;
+            peerProtocolVersion = 0;
+            if (handshake) {
+                // The legacy format is used if the peer does not handshake, the negotiated format is
+                // known once the peer's hello arrives. Only a peer with the default header length
+                // reads the hello as a regular message, there is no fallback for larger ones.
+                this.format = new ChatFrameFormat(headerLength, false, false, false, fragmentSize, false);
+                this.writer = new ConnectedWriteThread(outStream, null, tracer);
+                // Only unfragmented messages above the maximum frame size can be spilled
+                int acceptedSize = wantedFormat.fragmentation ? maxFrameSize : Math.max(maxFrameSize, maxSpilledFrameSize);
+                byte[] hello = ChatHandshake.of(wantedFormat, headerLength, acceptedSize).encode();
+                writer.handshake(HELLO_FORMAT.encode(new OutboundMessage(hello, DEFAULT_MESSAGE_TYPE, 0))[0],
+                        format.headerLength == HELLO_FORMAT.headerLength ? format : null, handshakeTimeoutMillis);
+            } else {
+                this.format = wantedFormat;
+                this.writer = new ConnectedWriteThread(outStream, format, tracer);
             }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
         }
 
         @Override
         @RequiresPermission(Manifest.permission.BLUETOOTH)
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
+            writer.start();
 
-            byte[] headerBuffer = new byte[headerLength];
+            boolean awaitingHello = handshake;
+            byte[] headerBuffer = new byte[awaitingHello ? HELLO_FORMAT.headerLength : format.headerLength];
             byte[] bodyBuffer = new byte[1024];
+            Checksum checksum = format.checksum ? Crc32c.newChecksum() : null;
             byte[] bytes;
 
             // Keep listening to the InputStream while connected
@@ -580,68 +1405,563 @@ public class BluetoothChatManager {
                 try {
 
                     // Read from the InputStream
-                    bytes = readBytes(mmInStream, headerBuffer, bodyBuffer);
+                    bytes = readBytes(mmInStream, headerBuffer, bodyBuffer, awaitingHello ? HELLO_FORMAT : format, checksum);
+                    if (bytes != null && awaitingHello) {
+                        awaitingHello = false;
+                        ChatHandshake hello = ChatHandshake.decode(bytes);
+                        if (hello != null) {
+                            ChatFrameFormat negotiated = ChatHandshake.negotiate(wantedFormat, headerLength, hello);
+                            if (!writer.setFormat(negotiated, hello.maxFrameSize)) {
+                                throw new ChatFrameException("Handshake arrived after the timeout");
+                            }
+                            if (hello.headerLength > headerLength) {
+                                Log.w(TAG, "Peer uses a header length of " + hello.headerLength + ", this side "
+                                        + headerLength + ", padding headers to the larger one");
+                            }
+                            Log.i(TAG, "Handshake with protocol version " + hello.version + ", using " + negotiated);
+                            peerProtocolVersion = hello.version;
+                            format = negotiated;
+                            headerBuffer = new byte[format.headerLength];
+                            checksum = format.checksum ? Crc32c.newChecksum() : null;
+                            continue;
+                        }
+                        if (format.headerLength != HELLO_FORMAT.headerLength) {
+                            // The peer read the hello with its larger header and lost the frame sync
+                            throw new ChatFrameException("Peer did not handshake, a header length of "
+                                    + format.headerLength + " needs the handshake");
+                        }
+                        // The peer does not handshake, keep the legacy format
+                        Log.i(TAG, "Peer did not handshake, using legacy frames");
+                        writer.setFormat(format, 0);
+                    }
+                    if (bytes != null && format.fragmentation) {
+                        bytes = reassemble(headerBuffer, bytes);
+                    }
+
+                    int messageType = format.readMessageType(headerBuffer);
+                    if (bytes != null && messageType == TELEMETRY_MESSAGE_TYPE) {
+                        if (telemetry == null) {
+                            telemetry = new ChatTelemetryStream.Decoder();
+                        }
+                        // Deliver the rebuilt record with the message type of its stream
+                        byte[] frame = bytes;
+                        messageType = telemetry.readMessageType(frame);
+                        bytes = telemetry.decode(frame);
+                    }
 
                     if (bytes != null) {
-                        // Send the obtained bytes to the UI Activity
-                        if (listener != null) {
-                            final byte[] finalBytes = bytes;
-                            mainThread.post(new Runnable() {
+                        final long readNanos = System.nanoTime();
+                        record(ChatSessionRecorder.Direction.INBOUND, messageType, bytes);
+                        final int traceId;
+                        final ChatLatencyTracer tracer = format.tracing ? this.tracer : null;
+                        if (tracer != null) {
+                            traceId = format.readTraceId(headerBuffer);
+                            int senderMillis = format.readSenderMillis(headerBuffer);
+                            tracer.readCompleted(traceId, bytes.length, senderMillis, readNanos);
+                        } else {
+                            traceId = 0;
+                        }
+
+                        // Send the obtained bytes to the listeners of this message type
+                        final byte[] finalBytes = bytes;
+                        for (final ListenerRegistration registration : listeners) {
+                            if (!registration.accepts(messageType)) {
+                                continue;
+                            }
+                            registration.executor.execute(new Runnable() {
                                 @Override
                                 public void run() {
-                                    listener.chatServiceMessageRead(finalBytes);
+                                    if (tracer != null) {
+                                        tracer.listenerCalled(traceId, finalBytes.length, readNanos, System.nanoTime());
+                                    }
+                                    registration.listener.chatServiceMessageRead(finalBytes);
                                 }
                             });
                         }
                     }
 
                     //Check if we can still get the input stream
-                    mmSocket.getInputStream();
+                    if (mmSocket != null) {
+                        mmSocket.getInputStream();
+                    }
 
+                } catch (ChatFrameException e) {
+                    Log.e(TAG, "Dropping connection with corrupt frame", e);
+                    connectionLost(uuid, secure, e.getMessage());
+                    break;
                 } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
                     Log.e(TAG, "disconnected", e);
-                    connectionLost(uuid, secure);
                     // Start the service over to restart listening mode
-                    BluetoothChatManager.this.startListening(uuid, secure);
+                    connectionLost(uuid, secure, "Device connection was lost");
                     break;
                 }
             }
+            writer.interrupt();
             dispose();
         }
 
-        void write(byte[] bytes) {
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            writer.interrupt();
+        }
+
+        /**
+         * Queues the bytes to be written by the writer thread. Blocks while too many bytes are
+         * already waiting to be written.
+         *
+         * @return false if the connection closed or the thread was interrupted meanwhile
+         */
+        boolean write(byte[] bytes, int messageType) {
+            int traceId = tracer != null ? tracer.nextTraceId() : 0;
+            return write(new OutboundMessage(bytes, messageType, traceId));
+        }
+
+        boolean write(OutboundMessage message) {
+            if (tracer != null) {
+                tracer.writeEntered(message.traceId, message.payload.length, message.enteredNanos);
+            }
+
+            try {
+                return writer.enqueue(message);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while waiting to write", e);
+                message.failed(BluetoothChatManager.this);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Queues the bytes to be written by the writer thread unless too many bytes are already
+         * waiting to be written.
+         *
+         * @return false if the bytes were not queued
+         */
+        boolean offer(byte[] bytes, int messageType) {
+            int traceId = tracer != null ? tracer.nextTraceId() : 0;
+            return writer.offer(new OutboundMessage(bytes, messageType, traceId));
+        }
+
+        /**
+         * Collects the fragments of interleaved messages.
+         *
+         * @return The complete message or null if more fragments are expected
+         */
+        private byte[] reassemble(byte[] headerBuffer, byte[] fragment) throws ChatFrameException {
+            int messageId = format.readMessageId(headerBuffer);
+            boolean last = format.isLastFragment(headerBuffer);
+            ByteArrayOutputStream partial = partialMessages.get(messageId);
+            if (partial == null) {
+                if (last) {
+                    return fragment;
+                }
+                if (partialMessages.size() >= MAX_PARTIAL_MESSAGES) {
+                    throw new ChatFrameException("Too many interleaved messages");
+                }
+                partial = new ByteArrayOutputStream(fragment.length * 2);
+                partialMessages.put(messageId, partial);
+            }
+
+            if (partial.size() + fragment.length > maxFrameSize) {
+                throw new ChatFrameException("Message exceeds the maximum frame size");
+            }
+            partial.write(fragment, 0, fragment.length);
+            if (!last) {
+                return null;
+            }
+            partialMessages.remove(messageId);
+            return partial.toByteArray();
+        }
+
+        private void dispose() {
             try {
-                byte[] headerBytes = ByteBuffer.allocate(headerLength).putInt(bytes.length).array();
+                mmCloseable.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+    }
 
-                final byte[] destination = new byte[headerBytes.length + bytes.length];
-                System.arraycopy(headerBytes, 0, destination, 0, headerBytes.length);
-                System.arraycopy(bytes, 0, destination, headerBytes.length, bytes.length);
+    /**
+     * This thread writes the queued messages of a connection. Messages larger than the fragment
+     * size are written one fragment at a time, taking turns with the other queued messages, so a
+     * large transfer does not hold up small messages.
+     */
+    private class ConnectedWriteThread extends Thread {
+        private final OutputStream mmOutStream;
+        private final ChatLatencyTracer tracer;
+        private final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>();
+        private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        private ChatFrameFormat format;
+        // The largest message the peer accepts, 0 if it did not tell
+        private int peerMaxFrameSize;
+        private ByteBuffer hello;
+        private ChatFrameFormat fallbackFormat;
+        private long handshakeTimeoutMillis;
+        private long queuedBytes;
+        private boolean closed;
+
+        /**
+         * @param format The frame format, or null if it is negotiated by a handshake
+         */
+        ConnectedWriteThread(OutputStream outStream, ChatFrameFormat format, ChatLatencyTracer tracer) {
+            this.mmOutStream = outStream;
+            this.format = format;
+            this.tracer = tracer;
+        }
 
-                mmOutStream.write(destination);
+        /**
+         * Makes the thread write the hello frame first and wait for the negotiated format before
+         * writing any message. Must be called before the thread is started.
+         *
+         * @param fallbackFormat The format used if the handshake times out, or null to wait for
+         *                       the hello as long as the connection is open
+         */
+        void handshake(ByteBuffer hello, ChatFrameFormat fallbackFormat, long timeoutMillis) {
+            this.hello = hello;
+            this.fallbackFormat = fallbackFormat;
+            this.handshakeTimeoutMillis = timeoutMillis;
+        }
 
-                // Share the sent message back to the UI Activity
-                if (listener != null) {
-                    mainThread.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            listener.chatServiceMessageWritten(destination);
-                        }
-                    });
+        /**
+         * Set the negotiated format.
+         *
+         * @param peerMaxFrameSize The largest message the peer accepts, 0 if it did not tell
+         * @return false if the handshake already timed out and the fallback format is used
+         */
+        boolean setFormat(ChatFrameFormat format, int peerMaxFrameSize) {
+            synchronized (queue) {
+                if (this.format != null) {
+                    return this.format.equals(format);
+                }
+                this.format = format;
+                this.peerMaxFrameSize = peerMaxFrameSize;
+                queue.notifyAll();
+                return true;
+            }
+        }
+
+        private ChatFrameFormat awaitFormat() throws InterruptedException {
+            synchronized (queue) {
+                long deadline = System.currentTimeMillis() + handshakeTimeoutMillis;
+                while (format == null) {
+                    if (fallbackFormat == null) {
+                        queue.wait();
+                        continue;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        Log.w(TAG, "Handshake timed out, using legacy frames");
+                        format = fallbackFormat;
+                        break;
+                    }
+                    queue.wait(remaining);
+                }
+                return format;
+            }
+        }
+
+        /**
+         * @return false if the connection closed meanwhile
+         */
+        boolean enqueue(OutboundMessage message) throws InterruptedException {
+            synchronized (queue) {
+                while (queuedBytes >= MAX_QUEUED_BYTES && !closed) {
+                    queue.wait();
+                }
+                return add(message);
+            }
+        }
+
+        /**
+         * Queues the message unless the queue is full.
+         *
+         * @return false if the message was not queued
+         */
+        boolean offer(OutboundMessage message) {
+            synchronized (queue) {
+                if (queuedBytes >= MAX_QUEUED_BYTES && !closed) {
+                    return false;
+                }
+                if (tracer != null) {
+                    tracer.writeEntered(message.traceId, message.payload.length, message.enteredNanos);
+                }
+                return add(message);
+            }
+        }
+
+        // Called with the queue lock held
+        private boolean add(OutboundMessage message) {
+            if (closed) {
+                Log.e(TAG, "Connection closed, dropping " + message.payload.length + " bytes");
+                message.failed(BluetoothChatManager.this);
+                return false;
+            }
+            queue.addLast(message);
+            queuedBytes += message.payload.length;
+            queue.notifyAll();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            setName("ConnectedWriteThread");
+            ArrayDeque<PendingWrite> active = new ArrayDeque<>();
+            List<OutboundMessage> taken = new ArrayList<>();
+
+            try {
+                if (hello != null) {
+                    writeFrame(hello);
                 }
+                ChatFrameFormat format = awaitFormat();
+                int maxMessageSize;
+                synchronized (queue) {
+                    maxMessageSize = peerMaxFrameSize;
+                }
+
+                while (!isInterrupted()) {
+                    synchronized (queue) {
+                        while (queue.isEmpty() && active.isEmpty()) {
+                            queue.wait();
+                        }
+                        taken.addAll(queue);
+                        queue.clear();
+                    }
+                    for (OutboundMessage message : taken) {
+                        if (message.type != DEFAULT_MESSAGE_TYPE && !format.typed) {
+                            // The handshake turned message types off, the type would be lost
+                            Log.e(TAG, "Peer does not support message types, dropping " + message.payload.length + " bytes");
+                            dropped(message);
+                            continue;
+                        }
+                        if (maxMessageSize > 0 && message.payload.length > maxMessageSize) {
+                            // The peer would drop the connection
+                            Log.e(TAG, "Peer accepts at most " + maxMessageSize + " bytes, dropping " + message.payload.length + " bytes");
+                            dropped(message);
+                            continue;
+                        }
+                        active.addLast(new PendingWrite(message, message.frames(format)));
+                    }
+                    taken.clear();
 
+                    // Write a single frame of the next message, then give the others a turn
+                    PendingWrite pending = active.pollFirst();
+                    if (pending == null) {
+                        // Every message taken was dropped
+                        continue;
+                    }
+                    ByteBuffer frame = pending.frames[pending.next++];
+                    throttle(frame.remaining());
+                    writeFrame(frame);
+                    if (pending.next < pending.frames.length) {
+                        active.addLast(pending);
+                    } else {
+                        written(pending);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Connection closed
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
+            } finally {
+                synchronized (queue) {
+                    closed = true;
+                    taken.addAll(queue);
+                    queue.clear();
+                    queue.notifyAll();
+                }
+                for (PendingWrite pending : active) {
+                    pending.message.failed(BluetoothChatManager.this);
+                }
+                for (OutboundMessage message : taken) {
+                    message.failed(BluetoothChatManager.this);
+                }
             }
         }
 
-        private void dispose() {
+        /**
+         * Writes a read-only frame through the write buffer. The position of the frame is not
+         * changed, a broadcast frame is written by the other connections too.
+         */
+        private void writeFrame(ByteBuffer frame) throws IOException {
+            ByteBuffer remaining = frame.duplicate();
+            while (remaining.hasRemaining()) {
+                int count = Math.min(remaining.remaining(), writeBuffer.length);
+                remaining.get(writeBuffer, 0, count);
+                mmOutStream.write(writeBuffer, 0, count);
+            }
+        }
+
+        private void throttle(int length) throws InterruptedException {
+            long waited = 0;
+            ChatRateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                waited += limiter.acquire(length);
+            }
+            limiter = globalRateLimiter;
+            if (limiter != null) {
+                waited += limiter.acquire(length);
+            }
+            if (waited > 0) {
+                throttledNanos.addAndGet(waited);
+            }
+        }
+
+        private void dropped(OutboundMessage message) {
+            synchronized (queue) {
+                queuedBytes -= message.payload.length;
+                queue.notifyAll();
+            }
+            message.failed(BluetoothChatManager.this);
+        }
+
+        private void written(PendingWrite pending) {
+            final OutboundMessage message = pending.message;
+            synchronized (queue) {
+                queuedBytes -= message.payload.length;
+                queue.notifyAll();
+            }
+            if (tracer != null) {
+                tracer.socketWritten(message.traceId, message.payload.length, message.enteredNanos, System.nanoTime());
+            }
+            record(ChatSessionRecorder.Direction.OUTBOUND, message.type, message.payload);
+            message.written(BluetoothChatManager.this);
+
+            // Share a copy of the sent payload back to the listeners of this message type, the
+            // payload may be shared with other connections
+            final byte[] bytes = message.payload.clone();
+            for (final ListenerRegistration registration : listeners) {
+                if (!registration.accepts(message.type)) {
+                    continue;
+                }
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.chatServiceMessageWritten(bytes);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A socket type and service record UUID to connect with.
+     *
+     * @see #connect(BluetoothDevice, List)
+     */
+    public static class ConnectAttempt {
+        private final UUID uuid;
+        private final boolean secure;
+
+        /**
+         * @param uuid   The service record UUID
+         * @param secure Socket Security type - Secure (true) , Insecure (false)
+         */
+        public ConnectAttempt(UUID uuid, boolean secure) {
+            this.uuid = uuid;
+            this.secure = secure;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public boolean isSecure() {
+            return secure;
+        }
+
+        String getSocketType() {
+            return secure ? "Secure" : "Insecure";
+        }
+
+        @Override
+        public String toString() {
+            return getSocketType() + " " + uuid;
+        }
+    }
+
+    private interface ListenerCall {
+        void call(BluetoothChatServiceListener listener);
+    }
+
+    /**
+     * A listener with the executor it runs on and the message types it receives.
+     */
+    private static class ListenerRegistration {
+        final BluetoothChatServiceListener listener;
+        final Executor executor;
+        final boolean[] messageTypes;
+
+        ListenerRegistration(BluetoothChatServiceListener listener, Executor executor, int[] messageTypes) {
+            this.listener = listener;
+            this.executor = executor;
+            if (messageTypes == null || messageTypes.length == 0) {
+                this.messageTypes = null;
+            } else {
+                this.messageTypes = new boolean[256];
+                for (int type : messageTypes) {
+                    if (type < 0 || type >= this.messageTypes.length) {
+                        throw new IllegalArgumentException("Invalid message type " + type);
+                    }
+                    this.messageTypes[type] = true;
+                }
+            }
+        }
+
+        boolean accepts(int messageType) {
+            if (messageTypes == null) {
+                return messageType <= MAX_APPLICATION_MESSAGE_TYPE;
+            }
+            return messageTypes[messageType];
+        }
+    }
+
+    /**
+     * A message being written by the ConnectedWriteThread.
+     */
+    private static class PendingWrite {
+        final OutboundMessage message;
+        final ByteBuffer[] frames;
+        int next;
+
+        PendingWrite(OutboundMessage message, ByteBuffer[] frames) {
+            this.message = message;
+            this.frames = frames;
+        }
+    }
+
+    private void record(ChatSessionRecorder.Direction direction, int messageType, byte[] bytes) {
+        ChatSessionRecorder recorder = sessionRecorder;
+        if (recorder != null) {
             try {
-                mmSocket.close();
+                recorder.record(direction, messageType, bytes);
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "Unable to record " + direction + " frame", e);
             }
         }
     }
 
+    private InputStream getInputStream(BluetoothSocket socket) {
+        try {
+            return socket.getInputStream();
+        } catch (IOException e) {
+            Log.e(TAG, "ConnectedThread()-> Unable to get the BluetoothSocket input stream", e);
+            return null;
+        }
+    }
+
+    private OutputStream getOutputStream(BluetoothSocket socket) {
+        try {
+            return socket.getOutputStream();
+        } catch (IOException e) {
+            Log.e(TAG, "ConnectedThread()-> Unable to get the BluetoothSocket output stream", e);
+            return null;
+        }
+    }
+
 }
 
@@ -0,0 +1,107 @@
+package com.otech.bluetoothutils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of a message broadcast by a {@link BluetoothChatGroup}, with the status of the
+ * message on every peer it was sent to.
+ */
+public class ChatBroadcast {
+
+    public enum Status {
+        PENDING, // queued on the peer's connection
+        WRITTEN, // the last frame was written to the peer's socket
+        FAILED // the peer was not connected or the connection closed before the message was written
+    }
+
+    private final Map<BluetoothChatManager, Status> statuses = new LinkedHashMap<>();
+    private int pending;
+
+    final OutboundMessage.Callback callback = new OutboundMessage.Callback() {
+        @Override
+        public void written(BluetoothChatManager manager, OutboundMessage message) {
+            complete(manager, Status.WRITTEN);
+        }
+
+        @Override
+        public void failed(BluetoothChatManager manager, OutboundMessage message) {
+            complete(manager, Status.FAILED);
+        }
+    };
+
+    ChatBroadcast(List<BluetoothChatManager> peers) {
+        for (BluetoothChatManager peer : peers) {
+            statuses.put(peer, Status.PENDING);
+        }
+        this.pending = statuses.size();
+    }
+
+    /**
+     * Return the status of the message on the given peer, or null if it was not sent to it.
+     */
+    public synchronized Status getStatus(BluetoothChatManager peer) {
+        return statuses.get(peer);
+    }
+
+    /**
+     * Return the status of the message on every peer it was sent to.
+     */
+    public synchronized Map<BluetoothChatManager, Status> getStatuses() {
+        return new LinkedHashMap<>(statuses);
+    }
+
+    /**
+     * Return the peers on which the message has the given status.
+     */
+    public synchronized List<BluetoothChatManager> getPeers(Status status) {
+        List<BluetoothChatManager> peers = new ArrayList<>();
+        for (Map.Entry<BluetoothChatManager, Status> entry : statuses.entrySet()) {
+            if (entry.getValue() == status) {
+                peers.add(entry.getKey());
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Return whether the message was written or failed on every peer.
+     */
+    public synchronized boolean isDone() {
+        return pending == 0;
+    }
+
+    /**
+     * Waits until the message was written or failed on every peer.
+     *
+     * @return Whether the broadcast is done
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private synchronized void complete(BluetoothChatManager manager, Status status) {
+        if (statuses.get(manager) == Status.PENDING) {
+            statuses.put(manager, status);
+            pending--;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChatBroadcast{peers=" + statuses.size() + ", pending=" + pending
+                + ", failed=" + getPeers(Status.FAILED).size() + "}";
+    }
+}
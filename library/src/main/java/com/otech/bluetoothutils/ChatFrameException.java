@@ -0,0 +1,16 @@
+package com.otech.bluetoothutils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a received frame is corrupt. The connection can not be trusted to be in sync
+ * anymore, so it is dropped instead of passing the frame to the listener.
+ */
+class ChatFrameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ChatFrameException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,178 @@
+package com.otech.bluetoothutils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Describes the layout of the frames exchanged on one connection and encodes outgoing messages
+ * into frames.
+ * <p>
+ * Every frame starts with a header holding the payload length as a 4 byte big endian int. The
+ * optional fields follow the length in this order:
+ * <ul>
+ * <li>trace field: 4 byte trace id and 4 byte sender wall clock in milliseconds</li>
+ * <li>fragment field: 2 byte message id and 1 byte of flags</li>
+ * <li>type field: 1 byte message type</li>
+ * </ul>
+ * The header is zero padded up to the header length the manager was constructed with, so peers
+ * using a larger header length than the fields need stay compatible with peers that do not use
+ * them. The payload follows the header and, if checksums are enabled, a 4 byte CRC32C of the
+ * header and payload ends the frame.
+ */
+final class ChatFrameFormat {
+
+    static final int LENGTH_FIELD_LENGTH = 4;
+    static final int TRACE_FIELD_LENGTH = 8;
+    static final int FRAGMENT_FIELD_LENGTH = 3;
+    static final int TYPE_FIELD_LENGTH = 1;
+    static final int CHECKSUM_LENGTH = 4;
+
+    // Set on the last fragment of a message
+    static final int FLAG_LAST_FRAGMENT = 0x01;
+
+    final boolean tracing;
+    final boolean checksum;
+    final boolean fragmentation;
+    final boolean typed;
+    final int fragmentSize;
+    final int headerLength;
+    final int traceOffset;
+    final int fragmentOffset;
+    final int typeOffset;
+
+    /**
+     * @param minimumHeaderLength The header length the manager was constructed with
+     * @param tracing             Whether frames carry the trace field
+     * @param checksum            Whether frames end with a CRC32C checksum
+     * @param fragmentation       Whether frames carry the fragment field
+     * @param fragmentSize        The largest payload of a single fragment
+     * @param typed               Whether frames carry the type field
+     */
+    ChatFrameFormat(int minimumHeaderLength, boolean tracing, boolean checksum, boolean fragmentation,
+                    int fragmentSize, boolean typed) {
+        this.tracing = tracing;
+        this.checksum = checksum;
+        this.fragmentation = fragmentation;
+        this.fragmentSize = fragmentSize;
+        this.typed = typed;
+
+        int offset = LENGTH_FIELD_LENGTH;
+        this.traceOffset = offset;
+        if (tracing) {
+            offset += TRACE_FIELD_LENGTH;
+        }
+        this.fragmentOffset = offset;
+        if (fragmentation) {
+            offset += FRAGMENT_FIELD_LENGTH;
+        }
+        this.typeOffset = offset;
+        if (typed) {
+            offset += TYPE_FIELD_LENGTH;
+        }
+        this.headerLength = Math.max(minimumHeaderLength, offset);
+    }
+
+    /**
+     * Return the number of bytes that follow the payload of a frame.
+     */
+    int trailerLength() {
+        return checksum ? CHECKSUM_LENGTH : 0;
+    }
+
+    /**
+     * Encodes the message into one frame, or into several if it is larger than the fragment size.
+     * All the frames share a single backing array. The frames are read-only, they may be queued
+     * on several connections at the same time.
+     */
+    ByteBuffer[] encode(OutboundMessage message) {
+        byte[] payload = message.payload;
+        int count = fragmentation ? Math.max(1, (payload.length + fragmentSize - 1) / fragmentSize) : 1;
+        int overhead = headerLength + trailerLength();
+        byte[] array = new byte[payload.length + count * overhead];
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        ByteBuffer[] frames = new ByteBuffer[count];
+        Checksum crc = checksum ? Crc32c.newChecksum() : null;
+
+        int payloadOffset = 0;
+        for (int i = 0; i < count; i++) {
+            int frameOffset = buffer.position();
+            int length = fragmentation ? Math.min(fragmentSize, payload.length - payloadOffset) : payload.length;
+
+            buffer.putInt(frameOffset, length);
+            if (tracing) {
+                buffer.putInt(frameOffset + traceOffset, message.traceId);
+                buffer.putInt(frameOffset + traceOffset + 4, message.senderMillis);
+            }
+            if (fragmentation) {
+                buffer.putShort(frameOffset + fragmentOffset, (short) message.messageId);
+                buffer.put(frameOffset + fragmentOffset + 2, (byte) (i == count - 1 ? FLAG_LAST_FRAGMENT : 0));
+            }
+            if (typed) {
+                buffer.put(frameOffset + typeOffset, (byte) message.type);
+            }
+            System.arraycopy(payload, payloadOffset, array, frameOffset + headerLength, length);
+            payloadOffset += length;
+
+            int end = frameOffset + headerLength + length;
+            if (crc != null) {
+                crc.reset();
+                crc.update(array, frameOffset, end - frameOffset);
+                buffer.putInt(end, (int) crc.getValue());
+                end += CHECKSUM_LENGTH;
+            }
+            buffer.position(end);
+            frames[i] = ByteBuffer.wrap(array, frameOffset, end - frameOffset).slice().asReadOnlyBuffer();
+        }
+        return frames;
+    }
+
+    int readTraceId(byte[] header) {
+        return ByteBuffer.wrap(header).getInt(traceOffset);
+    }
+
+    int readSenderMillis(byte[] header) {
+        return ByteBuffer.wrap(header).getInt(traceOffset + 4);
+    }
+
+    int readMessageId(byte[] header) {
+        return ByteBuffer.wrap(header).getShort(fragmentOffset) & 0xFFFF;
+    }
+
+    boolean isLastFragment(byte[] header) {
+        return (header[fragmentOffset + 2] & FLAG_LAST_FRAGMENT) != 0;
+    }
+
+    int readMessageType(byte[] header) {
+        return typed ? header[typeOffset] & 0xFF : BluetoothChatManager.DEFAULT_MESSAGE_TYPE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChatFrameFormat)) return false;
+        ChatFrameFormat that = (ChatFrameFormat) o;
+        return tracing == that.tracing
+                && checksum == that.checksum
+                && fragmentation == that.fragmentation
+                && typed == that.typed
+                && fragmentSize == that.fragmentSize
+                && headerLength == that.headerLength;
+    }
+
+    @Override
+    public String toString() {
+        return "ChatFrameFormat{headerLength=" + headerLength + ", tracing=" + tracing + ", checksum=" + checksum
+                + ", fragmentation=" + fragmentation + ", fragmentSize=" + fragmentSize + ", typed=" + typed + "}";
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (tracing ? 1 : 0);
+        result = 31 * result + (checksum ? 1 : 0);
+        result = 31 * result + (fragmentation ? 1 : 0);
+        result = 31 * result + (typed ? 1 : 0);
+        result = 31 * result + fragmentSize;
+        result = 31 * result + headerLength;
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package com.otech.bluetoothutils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The hello message exchanged by both sides when a connection opens, so they can agree on the
+ * frame options both of them support.
+ * <p>
+ * The hello is sent as the payload of a frame with nothing but the 4 byte length in its header,
+ * whatever header length the sides were constructed with, so it can be read before the sides
+ * know each other's header length. It is laid out as
+ * <pre>
+ * [magic 4 bytes][version 1 byte][capabilities 4 bytes][max frame size 4 bytes][fragment size 4 bytes]
+ * [header length 4 bytes]
+ * </pre>
+ * The capabilities are a bit set of the frame options the sender wants to use. Each option is used
+ * when both sides want it, fragments are no larger than what either side prefers and headers are
+ * padded to the larger header length of the two sides. The max frame size is the largest message
+ * the sender accepts, the other side fails larger writes instead of sending them.
+ */
+final class ChatHandshake {
+
+    static final int MAGIC = 0x42544348; // "BTCH"
+    static final int VERSION = 2;
+    static final int LENGTH = 21;
+    // Version 1 hellos end before the header length
+    static final int VERSION_1_LENGTH = 17;
+
+    static final int CAPABILITY_TRACING = 0x01;
+    static final int CAPABILITY_CHECKSUM = 0x02;
+    static final int CAPABILITY_FRAGMENTATION = 0x04;
+    static final int CAPABILITY_MESSAGE_TYPES = 0x08;
+
+    final int version;
+    final int capabilities;
+    final int maxFrameSize;
+    final int fragmentSize;
+    // 0 if the peer did not send it
+    final int headerLength;
+
+    ChatHandshake(int version, int capabilities, int maxFrameSize, int fragmentSize, int headerLength) {
+        this.version = version;
+        this.capabilities = capabilities;
+        this.maxFrameSize = maxFrameSize;
+        this.fragmentSize = fragmentSize;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Return the hello of a side that wants the options of the given format.
+     *
+     * @param wanted              The format with the options this side wants
+     * @param minimumHeaderLength The header length the manager was constructed with
+     * @param maxFrameSize        The largest message this side accepts
+     */
+    static ChatHandshake of(ChatFrameFormat wanted, int minimumHeaderLength, int maxFrameSize) {
+        int capabilities = 0;
+        if (wanted.tracing) capabilities |= CAPABILITY_TRACING;
+        if (wanted.checksum) capabilities |= CAPABILITY_CHECKSUM;
+        if (wanted.fragmentation) capabilities |= CAPABILITY_FRAGMENTATION;
+        if (wanted.typed) capabilities |= CAPABILITY_MESSAGE_TYPES;
+        return new ChatHandshake(VERSION, capabilities, maxFrameSize, wanted.fragmentSize, minimumHeaderLength);
+    }
+
+    byte[] encode() {
+        return ByteBuffer.allocate(LENGTH)
+                .putInt(MAGIC)
+                .put((byte) version)
+                .putInt(capabilities)
+                .putInt(maxFrameSize)
+                .putInt(fragmentSize)
+                .putInt(headerLength)
+                .array();
+    }
+
+    /**
+     * Return the hello in the payload or null if the payload is not a hello, which means the peer
+     * does not handshake.
+     */
+    static ChatHandshake decode(byte[] payload) {
+        if (payload.length < VERSION_1_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        // Later versions may append fields
+        int version = buffer.get() & 0xFF;
+        int capabilities = buffer.getInt();
+        int maxFrameSize = buffer.getInt();
+        int fragmentSize = buffer.getInt();
+        int headerLength = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+        return new ChatHandshake(version, capabilities, maxFrameSize, fragmentSize, headerLength);
+    }
+
+    /**
+     * Return the format using the options wanted by both this side and the peer.
+     *
+     * @param wanted              The format with the options this side wants
+     * @param minimumHeaderLength The header length the manager was constructed with
+     * @param peer                The hello of the peer
+     */
+    static ChatFrameFormat negotiate(ChatFrameFormat wanted, int minimumHeaderLength, ChatHandshake peer) {
+        int fragmentSize = wanted.fragmentSize;
+        if (peer.fragmentSize > 0) {
+            fragmentSize = Math.min(fragmentSize, peer.fragmentSize);
+        }
+        if (peer.maxFrameSize > 0) {
+            fragmentSize = Math.min(fragmentSize, peer.maxFrameSize);
+        }
+        return new ChatFrameFormat(Math.max(minimumHeaderLength, peer.headerLength),
+                wanted.tracing && (peer.capabilities & CAPABILITY_TRACING) != 0,
+                wanted.checksum && (peer.capabilities & CAPABILITY_CHECKSUM) != 0,
+                wanted.fragmentation && (peer.capabilities & CAPABILITY_FRAGMENTATION) != 0,
+                fragmentSize,
+                wanted.typed && (peer.capabilities & CAPABILITY_MESSAGE_TYPES) != 0);
+    }
+}
@@ -0,0 +1,161 @@
+package com.otech.bluetoothutils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records per-frame timestamps of a {@link BluetoothChatManager} connection and aggregates them in
+ * one {@link LatencyHistogram} per stage.
+ * <p>
+ * When a tracer is installed on both sides of a connection every frame carries a compact trace field
+ * in its header: a 4 byte trace id followed by the sender's wall clock in milliseconds (truncated to
+ * 4 bytes). The trace id is reported with every {@link TraceEvent} on both devices so the sender and
+ * receiver timestamps of the same frame can be matched up.
+ * <p>
+ * The {@link Stage#TRANSIT} stage compares wall clocks of two different devices and is therefore
+ * only as accurate as their clock synchronization.
+ */
+public class ChatLatencyTracer {
+
+    private final AtomicInteger traceIds = new AtomicInteger(new Random().nextInt());
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final TraceListener traceListener;
+
+    /**
+     * Constructs a tracer that only aggregates latency histograms.
+     */
+    public ChatLatencyTracer() {
+        this(null);
+    }
+
+    /**
+     * Constructs a tracer.
+     *
+     * @param traceListener Receives every trace event, may be null. It is called on the thread
+     *                      where the event happened, so it should return quickly.
+     */
+    public ChatLatencyTracer(TraceListener traceListener) {
+        this.traceListener = traceListener;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Return the latency histogram of the given stage.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Clears all the histograms.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    int nextTraceId() {
+        return traceIds.incrementAndGet();
+    }
+
+    void writeEntered(int traceId, int length, long nanos) {
+        notifyListener(traceId, Event.WRITE_ENTER, length, nanos);
+    }
+
+    void socketWritten(int traceId, int length, long enteredNanos, long nanos) {
+        getHistogram(Stage.WRITE).record(nanos - enteredNanos);
+        notifyListener(traceId, Event.SOCKET_WRITTEN, length, nanos);
+    }
+
+    void readCompleted(int traceId, int length, int senderMillis, long nanos) {
+        int transitMillis = (int) System.currentTimeMillis() - senderMillis;
+        getHistogram(Stage.TRANSIT).record(TimeUnit.MILLISECONDS.toNanos(transitMillis));
+        notifyListener(traceId, Event.READ_COMPLETE, length, nanos);
+    }
+
+    void listenerCalled(int traceId, int length, long readNanos, long nanos) {
+        getHistogram(Stage.DISPATCH).record(nanos - readNanos);
+        notifyListener(traceId, Event.LISTENER_CALLED, length, nanos);
+    }
+
+    private void notifyListener(int traceId, Event event, int length, long nanos) {
+        if (traceListener != null) {
+            traceListener.onTraceEvent(new TraceEvent(traceId, event, length, nanos));
+        }
+    }
+
+    /**
+     * Points in the life of a frame at which a timestamp is recorded.
+     */
+    public enum Event {
+        WRITE_ENTER, // the frame entered write() on the sender
+        SOCKET_WRITTEN, // the socket write of the frame finished on the sender
+        READ_COMPLETE, // readBytes() completed the frame on the receiver
+        LISTENER_CALLED // the listener callback started running on the receiver
+    }
+
+    /**
+     * Stages measured by the latency histograms.
+     */
+    public enum Stage {
+        WRITE, // WRITE_ENTER -> SOCKET_WRITTEN on the sender
+        TRANSIT, // sender wall clock at WRITE_ENTER -> READ_COMPLETE on the receiver
+        DISPATCH // READ_COMPLETE -> LISTENER_CALLED on the receiver
+    }
+
+    public interface TraceListener {
+        void onTraceEvent(TraceEvent event);
+    }
+
+    /**
+     * A single timestamp of a traced frame.
+     */
+    public static class TraceEvent {
+        private final int traceId;
+        private final Event event;
+        private final int length;
+        private final long timestampNanos;
+
+        TraceEvent(int traceId, Event event, int length, long timestampNanos) {
+            this.traceId = traceId;
+            this.event = event;
+            this.length = length;
+            this.timestampNanos = timestampNanos;
+        }
+
+        /**
+         * Return the id shared by the sender and receiver events of the same frame.
+         */
+        public int getTraceId() {
+            return traceId;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        /**
+         * Return the payload length of the frame in bytes.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Return the local {@link System#nanoTime()} at which the event happened.
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "TraceEvent{traceId=" + traceId + ", event=" + event + ", length=" + length
+                    + ", timestampNanos=" + timestampNanos + "}";
+        }
+    }
+}
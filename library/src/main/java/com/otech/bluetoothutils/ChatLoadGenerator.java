@@ -0,0 +1,544 @@
+package com.otech.bluetoothutils;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator and soak test harness for the chat protocol. It connects pairs of
+ * {@link BluetoothChatManager}s with {@link ChatLoopback} and drives them with messages of a
+ * configurable size distribution and rate, so the framing and connection threads can be exercised
+ * for hours without hardware.
+ * <p>
+ * Periodic {@link Report}s contain the throughput, end to end latency percentiles, heap growth and
+ * thread count, so leaks and throughput regressions show up as trends across reports. Messages
+ * are counted and timed on the connection threads, so the latency does not include the UI thread
+ * and the generator does not load it.
+ * <pre>
+ * ChatLoadGenerator generator = new ChatLoadGenerator(context, new ChatLoadGenerator.Options()
+ *         .setConnections(4)
+ *         .setMessagesPerSecond(50)
+ *         .setSizeDistribution(ChatLoadGenerator.SizeDistribution.uniform(16, 4096))
+ *         .setDuration(2, TimeUnit.HOURS), reportListener);
+ * generator.start();
+ * </pre>
+ */
+public class ChatLoadGenerator {
+
+    private static final String TAG = "ChatLoadGenerator";
+
+    // Every message starts with the nanoTime at which it was sent
+    private static final int TIMESTAMP_LENGTH = 8;
+
+    // Runs the listeners on the connection threads
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Context context;
+    private final Options options;
+    private final ReportListener reportListener;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<BluetoothChatManager> managers = new ArrayList<>();
+    private final List<Thread> drivers = new ArrayList<>();
+    private ChatLatencyTracer tracer;
+    private ScheduledExecutorService reporter;
+    private volatile boolean stopping;
+    private long startNanos;
+    private long baselineHeap;
+    private int baselineThreads;
+
+    /**
+     * Constructs a load generator.
+     *
+     * @param context        Used to create the chat managers
+     * @param options        The load to generate
+     * @param reportListener Receives the periodic and final reports, may be null
+     */
+    public ChatLoadGenerator(Context context, Options options, ReportListener reportListener) {
+        this.context = context;
+        this.options = options;
+        this.reportListener = reportListener;
+    }
+
+    /**
+     * Connects the managers and starts generating load. The generator stops by itself once the
+     * configured duration has elapsed.
+     */
+    public synchronized void start() {
+        if (reporter != null) {
+            throw new IllegalStateException("Load generator already started");
+        }
+
+        stopping = false;
+        baselineHeap = usedHeap();
+        baselineThreads = Thread.activeCount();
+        tracer = options.tracing ? new ChatLatencyTracer() : null;
+        startNanos = System.nanoTime();
+
+        for (int i = 0; i < options.connections; i++) {
+            BluetoothChatManager sender = new BluetoothChatManager(context, null);
+            BluetoothChatManager receiver = new BluetoothChatManager(context, null);
+            sender.addListener(new LoadListener(false), DIRECT_EXECUTOR);
+            receiver.addListener(new LoadListener(true), DIRECT_EXECUTOR);
+            sender.setLatencyTracer(tracer);
+            receiver.setLatencyTracer(tracer);
+            sender.setFrameChecksumEnabled(options.frameChecksum);
+            receiver.setFrameChecksumEnabled(options.frameChecksum);
+            if (options.fragmentSize > 0) {
+                sender.setFragmentationEnabled(true);
+                sender.setFragmentSize(options.fragmentSize);
+                receiver.setFragmentationEnabled(true);
+            }
+            ChatLoopback.connect(sender, receiver);
+            managers.add(sender);
+            managers.add(receiver);
+
+            Thread driver = new Driver(sender, i);
+            drivers.add(driver);
+            driver.start();
+        }
+
+        reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(false);
+            }
+        }, options.reportIntervalMillis, options.reportIntervalMillis, TimeUnit.MILLISECONDS);
+        if (options.durationMillis > 0) {
+            reporter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            }, options.durationMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops generating load, disconnects the managers and delivers the final report.
+     */
+    public synchronized void stop() {
+        if (reporter == null) {
+            return;
+        }
+
+        stopping = true;
+        for (Thread driver : drivers) {
+            driver.interrupt();
+        }
+        for (Thread driver : drivers) {
+            try {
+                driver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (BluetoothChatManager manager : managers) {
+            manager.stopAll();
+        }
+        drivers.clear();
+        managers.clear();
+
+        reporter.shutdown();
+        reporter = null;
+        report(true);
+    }
+
+    /**
+     * Return the latency tracer shared by all the managers or null if tracing is disabled.
+     */
+    public ChatLatencyTracer getLatencyTracer() {
+        return tracer;
+    }
+
+    /**
+     * Creates a report of the load generated so far.
+     */
+    public Report getReport() {
+        return new Report(this, false);
+    }
+
+    private void report(boolean last) {
+        if (options.gcBeforeReport) {
+            System.gc();
+        }
+        Report report = new Report(this, last);
+        Log.i(TAG, report.toString());
+        if (reportListener != null) {
+            reportListener.onReport(report);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public interface ReportListener {
+        void onReport(Report report);
+    }
+
+    /**
+     * Picks the size of each generated message.
+     */
+    public static abstract class SizeDistribution {
+
+        /**
+         * Every message has the same size.
+         */
+        public static SizeDistribution fixed(final int size) {
+            return new SizeDistribution() {
+                @Override
+                public int nextSize(Random random) {
+                    return size;
+                }
+            };
+        }
+
+        /**
+         * Message sizes are spread evenly between min and max, both inclusive.
+         */
+        public static SizeDistribution uniform(final int min, final int max) {
+            return new SizeDistribution() {
+                @Override
+                public int nextSize(Random random) {
+                    return min + random.nextInt(max - min + 1);
+                }
+            };
+        }
+
+        /**
+         * Most messages are small with a long tail of larger ones, capped at max.
+         */
+        public static SizeDistribution exponential(final int mean, final int max) {
+            return new SizeDistribution() {
+                @Override
+                public int nextSize(Random random) {
+                    return (int) Math.min(max, Math.round(-mean * Math.log(1 - random.nextDouble())));
+                }
+            };
+        }
+
+        /**
+         * Return the size in bytes of the next message.
+         */
+        public abstract int nextSize(Random random);
+    }
+
+    /**
+     * The load to generate.
+     */
+    public static class Options {
+        private int connections = 1;
+        private int messagesPerSecond = 100;
+        private SizeDistribution sizeDistribution = SizeDistribution.fixed(256);
+        private long durationMillis = 0;
+        private long reportIntervalMillis = 10000;
+        private boolean gcBeforeReport = true;
+        private boolean tracing = false;
+        private boolean frameChecksum = false;
+        private int fragmentSize = 0;
+
+        /**
+         * Number of connected manager pairs to drive.
+         */
+        public Options setConnections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * Messages sent per second on every connection, 0 to send as fast as possible.
+         */
+        public Options setMessagesPerSecond(int messagesPerSecond) {
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        public Options setSizeDistribution(SizeDistribution sizeDistribution) {
+            this.sizeDistribution = sizeDistribution;
+            return this;
+        }
+
+        /**
+         * How long to generate load for, 0 to run until {@link #stop()} is called.
+         */
+        public Options setDuration(long duration, TimeUnit unit) {
+            this.durationMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        public Options setReportInterval(long interval, TimeUnit unit) {
+            this.reportIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Request a garbage collection before measuring the heap, so heap growth reflects leaks
+         * rather than garbage waiting to be collected.
+         */
+        public Options setGcBeforeReport(boolean gcBeforeReport) {
+            this.gcBeforeReport = gcBeforeReport;
+            return this;
+        }
+
+        /**
+         * Install a {@link ChatLatencyTracer} on all the managers to break the latency down by stage.
+         */
+        public Options setTracing(boolean tracing) {
+            this.tracing = tracing;
+            return this;
+        }
+
+        /**
+         * Enable CRC32C frame checksums on all the managers.
+         */
+        public Options setFrameChecksum(boolean frameChecksum) {
+            this.frameChecksum = frameChecksum;
+            return this;
+        }
+
+        /**
+         * Enable fragmentation with the given fragment size on all the managers, 0 to disable it.
+         */
+        public Options setFragmentSize(int fragmentSize) {
+            this.fragmentSize = fragmentSize;
+            return this;
+        }
+    }
+
+    /**
+     * A snapshot of the generated load.
+     */
+    public static class Report {
+        private final boolean last;
+        private final long elapsedMillis;
+        private final long messagesSent;
+        private final long bytesSent;
+        private final long messagesReceived;
+        private final long bytesReceived;
+        private final long errors;
+        private final long latencyP50Micros;
+        private final long latencyP99Micros;
+        private final long latencyMaxMicros;
+        private final long heapUsed;
+        private final long heapGrowth;
+        private final int threads;
+        private final int threadGrowth;
+
+        Report(ChatLoadGenerator generator, boolean last) {
+            this.last = last;
+            this.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - generator.startNanos);
+            this.messagesSent = generator.messagesSent.get();
+            this.bytesSent = generator.bytesSent.get();
+            this.messagesReceived = generator.messagesReceived.get();
+            this.bytesReceived = generator.bytesReceived.get();
+            this.errors = generator.errors.get();
+            this.latencyP50Micros = generator.latency.getPercentileMicros(50);
+            this.latencyP99Micros = generator.latency.getPercentileMicros(99);
+            this.latencyMaxMicros = generator.latency.getMaxMicros();
+            this.heapUsed = usedHeap();
+            this.heapGrowth = heapUsed - generator.baselineHeap;
+            this.threads = Thread.activeCount();
+            this.threadGrowth = threads - generator.baselineThreads;
+        }
+
+        /**
+         * Return true if this is the final report delivered when the generator stopped.
+         */
+        public boolean isLast() {
+            return last;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Return the number of messages queued on a connection. Messages dropped because the
+         * manager was not connected are not counted.
+         */
+        public long getMessagesSent() {
+            return messagesSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * Return the number of errors reported by the managers.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Return the received messages per second over the whole run.
+         */
+        public double getMessagesPerSecond() {
+            return elapsedMillis == 0 ? 0 : messagesReceived * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * Return the received bytes per second over the whole run.
+         */
+        public double getBytesPerSecond() {
+            return elapsedMillis == 0 ? 0 : bytesReceived * 1000.0 / elapsedMillis;
+        }
+
+        public long getLatencyP50Micros() {
+            return latencyP50Micros;
+        }
+
+        public long getLatencyP99Micros() {
+            return latencyP99Micros;
+        }
+
+        public long getLatencyMaxMicros() {
+            return latencyMaxMicros;
+        }
+
+        public long getHeapUsed() {
+            return heapUsed;
+        }
+
+        /**
+         * Return the heap growth in bytes since the generator was started.
+         */
+        public long getHeapGrowth() {
+            return heapGrowth;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * Return the number of threads started and not yet finished since the generator was started.
+         */
+        public int getThreadGrowth() {
+            return threadGrowth;
+        }
+
+        @Override
+        public String toString() {
+            return (last ? "Final report" : "Report")
+                    + " elapsed=" + elapsedMillis + "ms"
+                    + " sent=" + messagesSent + "/" + bytesSent + "B"
+                    + " received=" + messagesReceived + "/" + bytesReceived + "B"
+                    + " throughput=" + Math.round(getMessagesPerSecond()) + "msg/s "
+                    + Math.round(getBytesPerSecond()) + "B/s"
+                    + " latency p50=" + latencyP50Micros + "us p99=" + latencyP99Micros + "us max=" + latencyMaxMicros + "us"
+                    + " heap=" + heapUsed + "B (" + (heapGrowth >= 0 ? "+" : "") + heapGrowth + "B)"
+                    + " threads=" + threads + " (" + (threadGrowth >= 0 ? "+" : "") + threadGrowth + ")"
+                    + " errors=" + errors;
+        }
+    }
+
+    /**
+     * Sends messages on one connection at the configured rate.
+     */
+    private class Driver extends Thread {
+        private final BluetoothChatManager sender;
+        private final Random random;
+
+        Driver(BluetoothChatManager sender, int index) {
+            super("ChatLoadDriver" + index);
+            this.sender = sender;
+            this.random = new Random(index);
+        }
+
+        @Override
+        public void run() {
+            long intervalNanos = options.messagesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / options.messagesPerSecond : 0;
+            long next = System.nanoTime();
+            try {
+                while (!isInterrupted()) {
+                    if (intervalNanos > 0) {
+                        long sleepNanos = next - System.nanoTime();
+                        if (sleepNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                        }
+                        next += intervalNanos;
+                    }
+
+                    int size = Math.max(TIMESTAMP_LENGTH, options.sizeDistribution.nextSize(random));
+                    byte[] message = new byte[size];
+                    ByteBuffer.wrap(message).putLong(System.nanoTime());
+                    // A manager that is not connected drops the message
+                    if (sender.writeInternal(message, BluetoothChatManager.DEFAULT_MESSAGE_TYPE)) {
+                        messagesSent.incrementAndGet();
+                        bytesSent.addAndGet(size);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+    }
+
+    private class LoadListener implements BluetoothChatManager.BluetoothChatServiceListener {
+        private final boolean receiver;
+
+        LoadListener(boolean receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void chatServiceStateChanged(BluetoothChatManager.BluetoothChatServiceState state) {
+        }
+
+        @Override
+        public void chatServiceMessageWritten(byte[] bytes) {
+        }
+
+        @Override
+        public void chatServiceMessageRead(byte[] message) {
+            if (receiver && message.length >= TIMESTAMP_LENGTH) {
+                latency.record(System.nanoTime() - ByteBuffer.wrap(message).getLong());
+                messagesReceived.incrementAndGet();
+                bytesReceived.addAndGet(message.length);
+            }
+        }
+
+        @Override
+        public void chatServiceConnectedTo(BluetoothDevice device) {
+        }
+
+        @Override
+        public void chatError(String message) {
+            if (!stopping) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.otech.bluetoothutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Connects two {@link BluetoothChatManager}s to each other in-process, without Bluetooth. Frames
+ * written by one manager are read by the other using the same framing and threads as a real RFCOMM
+ * connection, which makes it possible to profile and replay sessions without hardware.
+ */
+public class ChatLoopback {
+
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private ChatLoopback() {
+    }
+
+    /**
+     * Connects the two managers to each other. Both managers report
+     * {@link BluetoothChatManager.BluetoothChatServiceState#STATE_CONNECTED} with a null device.
+     * The connection ends when either manager is stopped.
+     *
+     * @param first  One end of the connection
+     * @param second The other end of the connection
+     */
+    public static void connect(BluetoothChatManager first, BluetoothChatManager second) {
+        final Pipe firstToSecond = new Pipe(PIPE_CAPACITY);
+        final Pipe secondToFirst = new Pipe(PIPE_CAPACITY);
+        Closeable closeable = new Closeable() {
+            @Override
+            public void close() {
+                firstToSecond.close();
+                secondToFirst.close();
+            }
+        };
+        first.connected(secondToFirst.inputStream, firstToSecond.outputStream, closeable, "Loopback");
+        second.connected(firstToSecond.inputStream, secondToFirst.outputStream, closeable, "Loopback");
+    }
+
+    /**
+     * A bounded in-memory byte pipe. Reads block until data is available and writes block until
+     * there is room. Once closed, both ends throw an {@link IOException} like a closed socket.
+     */
+    static class Pipe {
+        private final byte[] buffer;
+        private int readPosition;
+        private int available;
+        private boolean closed;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return available;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (available == 0) {
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                await();
+            }
+            int count = Math.min(len, available);
+            int first = Math.min(count, buffer.length - readPosition);
+            System.arraycopy(buffer, readPosition, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, count - first);
+            readPosition = (readPosition + count) % buffer.length;
+            available -= count;
+            notifyAll();
+            return count;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (available == buffer.length) {
+                    await();
+                    continue;
+                }
+                int writePosition = (readPosition + available) % buffer.length;
+                int count = Math.min(len, Math.min(buffer.length - available, buffer.length - writePosition));
+                System.arraycopy(b, off, buffer, writePosition, count);
+                available += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.otech.bluetoothutils;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Topic based publish/subscribe over the connections of several {@link BluetoothChatManager}s.
+ * <p>
+ * Every side subscribes to topic filters with {@link #subscribe(String, TopicListener)}. The
+ * filters are sent to every connected peer when a connection opens and whenever they change, so
+ * each side knows what its peers want. {@link #publish(String, byte[])} only frames and queues the
+ * message for the peers subscribed to its topic, peers that did not subscribe never receive it.
+ * Topics are made of levels separated by '/', filters may use '+' for any single level and a
+ * trailing '#' for any remaining levels.
+ * <p>
+ * The messages use a reserved message type, so message types must be enabled on every manager.
+ *
+ * @see BluetoothChatManager#setMessageTypesEnabled(boolean)
+ */
+public class ChatPubSub {
+
+    private static final String TAG = "ChatPubSub";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int KIND_PUBLISH = 1;
+    static final int KIND_SUBSCRIBE = 2;
+    static final int KIND_UNSUBSCRIBE = 3;
+    static final int KIND_SNAPSHOT = 4;
+
+    // Handles the control messages on the connection's reader thread
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Executor executor;
+    private final BluetoothChatGroup group = new BluetoothChatGroup();
+    private final ConcurrentHashMap<BluetoothChatManager, PeerListener> peers = new ConcurrentHashMap<>();
+    // The filters of this side with the number of local listeners of each
+    private final Map<String, Integer> localFilters = new LinkedHashMap<>();
+    private final TopicTrie<TopicListener> localSubscriptions = new TopicTrie<>();
+    private final TopicTrie<BluetoothChatManager> remoteSubscriptions = new TopicTrie<>();
+
+    /**
+     * Constructs a publish/subscribe layer.
+     *
+     * @param executor Runs the topic listeners and sends the subscriptions to newly connected peers
+     */
+    public ChatPubSub(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a peer. Its subscriptions are exchanged as soon as it is connected.
+     *
+     * @throws IllegalArgumentException If message types are not enabled on the peer
+     */
+    public void add(BluetoothChatManager peer) {
+        if (!peer.isMessageTypesEnabled()) {
+            throw new IllegalArgumentException("Message types are not enabled on the peer");
+        }
+        PeerListener listener = new PeerListener(peer);
+        if (peers.putIfAbsent(peer, listener) != null) {
+            return;
+        }
+        group.add(peer);
+        peer.addListener(listener, DIRECT_EXECUTOR, BluetoothChatManager.PUBSUB_MESSAGE_TYPE);
+        if (peer.getState() == BluetoothChatManager.BluetoothChatServiceState.STATE_CONNECTED) {
+            sendSnapshot(peer);
+        }
+    }
+
+    public void remove(BluetoothChatManager peer) {
+        PeerListener listener = peers.remove(peer);
+        if (listener != null) {
+            peer.removeListener(listener);
+            group.remove(peer);
+            remoteSubscriptions.removeAll(peer);
+        }
+    }
+
+    /**
+     * Subscribes the listener to the topics matching the filter and tells the connected peers.
+     *
+     * @param filter   A topic, possibly with '+' and '#' wildcards
+     * @param listener Called with every matching message received from any peer
+     */
+    public void subscribe(String filter, TopicListener listener) {
+        TopicTrie.checkFilter(filter);
+        boolean announce;
+        synchronized (localFilters) {
+            if (!localSubscriptions.add(filter, listener)) {
+                return;
+            }
+            Integer count = localFilters.get(filter);
+            localFilters.put(filter, count == null ? 1 : count + 1);
+            announce = count == null;
+        }
+        if (announce) {
+            group.broadcastInternal(encodeFilter(KIND_SUBSCRIBE, filter),
+                    BluetoothChatManager.PUBSUB_MESSAGE_TYPE, group.getConnectedPeers());
+        }
+    }
+
+    /**
+     * Unsubscribes the listener from the filter. The peers are told once no listener of this side
+     * uses the filter anymore.
+     */
+    public void unsubscribe(String filter, TopicListener listener) {
+        boolean announce;
+        synchronized (localFilters) {
+            if (!localSubscriptions.remove(filter, listener)) {
+                return;
+            }
+            int count = localFilters.get(filter) - 1;
+            if (count == 0) {
+                localFilters.remove(filter);
+            } else {
+                localFilters.put(filter, count);
+            }
+            announce = count == 0;
+        }
+        if (announce) {
+            group.broadcastInternal(encodeFilter(KIND_UNSUBSCRIBE, filter),
+                    BluetoothChatManager.PUBSUB_MESSAGE_TYPE, group.getConnectedPeers());
+        }
+    }
+
+    /**
+     * Sends a message to the connected peers subscribed to its topic. The message is framed once
+     * for all of them, and not at all if no peer is subscribed.
+     *
+     * @param topic   The topic, without wildcards
+     * @param payload The message
+     * @return The status of the message on every subscribed peer
+     */
+    public ChatBroadcast publish(String topic, byte[] payload) {
+        if (topic.contains(TopicTrie.SINGLE_LEVEL_WILDCARD) || topic.contains(TopicTrie.MULTI_LEVEL_WILDCARD)) {
+            throw new IllegalArgumentException("Wildcards are not allowed in a published topic: " + topic);
+        }
+        List<BluetoothChatManager> targets = new ArrayList<>();
+        for (BluetoothChatManager peer : remoteSubscriptions.match(topic)) {
+            if (peers.containsKey(peer)) {
+                targets.add(peer);
+            }
+        }
+        if (targets.isEmpty()) {
+            return group.broadcastInternal(payload, BluetoothChatManager.PUBSUB_MESSAGE_TYPE, targets);
+        }
+
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + topicBytes.length + payload.length);
+        try {
+            out.write(KIND_PUBLISH);
+            VarInt.write(out, topicBytes.length);
+            out.write(topicBytes);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return group.broadcastInternal(out.toByteArray(), BluetoothChatManager.PUBSUB_MESSAGE_TYPE, targets);
+    }
+
+    /**
+     * Return whether a connected peer is subscribed to the topic.
+     */
+    public boolean hasSubscribers(String topic) {
+        for (BluetoothChatManager peer : remoteSubscriptions.match(topic)) {
+            if (peers.containsKey(peer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendSnapshot(BluetoothChatManager peer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            out.write(KIND_SNAPSHOT);
+            synchronized (localFilters) {
+                VarInt.write(out, localFilters.size());
+                for (String filter : localFilters.keySet()) {
+                    byte[] bytes = filter.getBytes(UTF_8);
+                    VarInt.write(out, bytes.length);
+                    out.write(bytes);
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        peer.writeInternal(out.toByteArray(), BluetoothChatManager.PUBSUB_MESSAGE_TYPE);
+    }
+
+    private static byte[] encodeFilter(int kind, String filter) {
+        byte[] bytes = filter.getBytes(UTF_8);
+        byte[] message = new byte[1 + bytes.length];
+        message[0] = (byte) kind;
+        System.arraycopy(bytes, 0, message, 1, bytes.length);
+        return message;
+    }
+
+    private void received(BluetoothChatManager peer, byte[] message) throws IOException {
+        if (message.length == 0) {
+            throw new IOException("Empty message");
+        }
+        switch (message[0]) {
+            case KIND_PUBLISH: {
+                ByteArrayInputStream in = new ByteArrayInputStream(message, 1, message.length - 1);
+                int topicLength = (int) VarInt.read(in);
+                int topicOffset = message.length - in.available();
+                if (topicLength < 0 || topicLength > in.available()) {
+                    throw new IOException("Malformed topic");
+                }
+                final String topic = new String(message, topicOffset, topicLength, UTF_8);
+                final byte[] payload = new byte[message.length - topicOffset - topicLength];
+                System.arraycopy(message, topicOffset + topicLength, payload, 0, payload.length);
+                dispatch(peer, topic, payload);
+                break;
+            }
+            case KIND_SUBSCRIBE:
+                remoteSubscriptions.add(remoteFilter(message, 1, message.length - 1), peer);
+                break;
+            case KIND_UNSUBSCRIBE:
+                remoteSubscriptions.remove(new String(message, 1, message.length - 1, UTF_8), peer);
+                break;
+            case KIND_SNAPSHOT: {
+                ByteArrayInputStream in = new ByteArrayInputStream(message, 1, message.length - 1);
+                List<String> filters = new ArrayList<>();
+                for (long count = VarInt.read(in); count > 0; count--) {
+                    int length = (int) VarInt.read(in);
+                    if (length < 0 || length > in.available()) {
+                        throw new IOException("Malformed filter");
+                    }
+                    filters.add(remoteFilter(message, message.length - in.available(), length));
+                    in.skip(length);
+                }
+                // Only replace the subscriptions once the whole snapshot is known to be valid
+                remoteSubscriptions.removeAll(peer);
+                for (String filter : filters) {
+                    remoteSubscriptions.add(filter, peer);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown message kind " + message[0]);
+        }
+    }
+
+    private static String remoteFilter(byte[] message, int offset, int length) throws IOException {
+        String filter = new String(message, offset, length, UTF_8);
+        try {
+            TopicTrie.checkFilter(filter);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed filter", e);
+        }
+        return filter;
+    }
+
+    private void dispatch(final BluetoothChatManager peer, final String topic, final byte[] payload) {
+        // The peer may have sent it before it learned about an unsubscribe
+        Set<TopicListener> listeners = localSubscriptions.match(topic);
+        for (final TopicListener listener : listeners) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMessage(peer, topic, payload);
+                }
+            });
+        }
+    }
+
+    public interface TopicListener {
+        /**
+         * Called with a message published by a peer on a topic matching a subscribed filter.
+         *
+         * @param peer    The manager of the connection the message was read from
+         * @param topic   The topic the message was published on
+         * @param payload The message
+         */
+        void onMessage(BluetoothChatManager peer, String topic, byte[] payload);
+    }
+
+    /**
+     * Exchanges the subscriptions with one peer.
+     */
+    private class PeerListener implements BluetoothChatManager.BluetoothChatServiceListener {
+        private final BluetoothChatManager peer;
+        // The connection the subscriptions of the peer were last received on
+        private int subscriptionSerial;
+
+        PeerListener(BluetoothChatManager peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void chatServiceStateChanged(BluetoothChatManager.BluetoothChatServiceState state) {
+            // Subscriptions belong to a connection. The reader of a new connection starts before
+            // it is reported connected, so its snapshot may already be there and must be kept.
+            if (state != BluetoothChatManager.BluetoothChatServiceState.STATE_CONNECTED) {
+                remoteSubscriptions.removeAll(peer);
+                return;
+            }
+            int serial = peer.getConnectionSerial();
+            synchronized (this) {
+                if (subscriptionSerial != serial) {
+                    remoteSubscriptions.removeAll(peer);
+                }
+            }
+            // Called with the manager's lock held, the write must not wait for room there
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendSnapshot(peer);
+                }
+            });
+        }
+
+        @Override
+        public void chatServiceMessageRead(byte[] message) {
+            // Taken before the lock of this listener, the manager calls it with its own lock held
+            int serial = peer.getConnectionSerial();
+            try {
+                synchronized (this) {
+                    subscriptionSerial = serial;
+                    received(peer, message);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Dropping malformed publish/subscribe message", e);
+            }
+        }
+
+        @Override
+        public void chatServiceMessageWritten(byte[] bytes) {
+        }
+
+        @Override
+        public void chatServiceConnectedTo(BluetoothDevice device) {
+        }
+
+        @Override
+        public void chatError(String message) {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.otech.bluetoothutils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the bytes written by {@link BluetoothChatManager} connections. The bucket
+ * fills at the configured rate up to the burst size, and every frame takes as many tokens as it
+ * has bytes, so short bursts go out at full speed while the average rate stays under the limit.
+ * <p>
+ * A limiter set on a single manager limits that connection. The same limiter set on several
+ * managers limits their combined rate, which keeps a bulk transfer to one peer from using up the
+ * radio for the others.
+ *
+ * @see BluetoothChatManager#setRateLimiter(ChatRateLimiter)
+ * @see BluetoothChatManager#setGlobalRateLimiter(ChatRateLimiter)
+ */
+public class ChatRateLimiter {
+
+    private long bytesPerSecond;
+    private long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * Constructs a limiter with a full bucket.
+     *
+     * @param bytesPerSecond The average rate, 0 for no limit
+     * @param burstBytes     The number of bytes that can be written at once after an idle period
+     */
+    public ChatRateLimiter(long bytesPerSecond, long burstBytes) {
+        setRate(bytesPerSecond, burstBytes);
+        this.tokens = this.burstBytes;
+    }
+
+    /**
+     * Changes the rate, also while writers are waiting for the limiter.
+     *
+     * @param bytesPerSecond The average rate, 0 for no limit
+     * @param burstBytes     The number of bytes that can be written at once after an idle period
+     */
+    public synchronized void setRate(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond < 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + bytesPerSecond + " or burst " + burstBytes);
+        }
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.tokens = Math.min(tokens, burstBytes);
+        notifyAll();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized long getBurstBytes() {
+        return burstBytes;
+    }
+
+    /**
+     * Return the total time writers waited for this limiter in nanoseconds.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    public void resetThrottledNanos() {
+        throttledNanos.set(0);
+    }
+
+    /**
+     * Waits until the bucket holds enough tokens for the given number of bytes and takes them. A
+     * frame larger than the burst size waits for a full bucket and leaves the bucket in debt, so
+     * the following frames wait for it to be paid back.
+     *
+     * @return The time waited in nanoseconds
+     */
+    long acquire(int bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean waited = false;
+        synchronized (this) {
+            while (true) {
+                long now = System.nanoTime();
+                refill(now);
+                if (bytesPerSecond == 0) {
+                    break;
+                }
+                double needed = Math.min(bytes, burstBytes);
+                if (tokens >= needed) {
+                    tokens -= bytes;
+                    break;
+                }
+                long waitNanos = (long) ((needed - tokens) * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+                waited = true;
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+            }
+        }
+        if (!waited) {
+            return 0;
+        }
+        long throttled = System.nanoTime() - start;
+        throttledNanos.addAndGet(throttled);
+        return throttled;
+    }
+
+    private void refill(long now) {
+        if (lastRefillNanos != 0 && bytesPerSecond > 0) {
+            tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefillNanos = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChatRateLimiter{bytesPerSecond=" + bytesPerSecond + ", burstBytes=" + burstBytes
+                + ", throttledMillis=" + TimeUnit.NANOSECONDS.toMillis(throttledNanos.get()) + "}";
+    }
+}
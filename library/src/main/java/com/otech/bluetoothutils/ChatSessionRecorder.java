@@ -0,0 +1,113 @@
+package com.otech.bluetoothutils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the frames of a {@link BluetoothChatManager} session to a compact binary file that can
+ * be replayed later using {@link ChatSessionReplayer}.
+ * <p>
+ * The file starts with the magic {@code "BTCS"}, a version byte and the wall clock time of the
+ * start of the recording in milliseconds. Every frame follows as its direction byte, the
+ * microseconds elapsed since the previous frame, the message type byte, the payload length and the
+ * payload. The elapsed time and length are stored as varints. Version 1 recordings have no message
+ * type, their frames are replayed with the default type.
+ * <p>
+ * Install it using {@link BluetoothChatManager#setSessionRecorder(ChatSessionRecorder)}.
+ */
+public class ChatSessionRecorder implements Closeable {
+
+    static final int MAGIC = 0x42544353; // "BTCS"
+    static final int VERSION = 2;
+    // Version 1 frames have no message type
+    static final int VERSION_1 = 1;
+
+    private final DataOutputStream out;
+    private long lastNanos;
+    private int frames;
+
+    /**
+     * Constructs a recorder writing to the given file. Existing content is overwritten.
+     *
+     * @param file The session file
+     * @throws IOException If the file could not be opened
+     */
+    public ChatSessionRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Constructs a recorder writing to the given stream.
+     *
+     * @param outputStream Receives the session, it is closed when the recorder is closed
+     * @throws IOException If the file header could not be written
+     */
+    public ChatSessionRecorder(OutputStream outputStream) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        this.lastNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Appends a frame of the default message type to the recording.
+     *
+     * @param direction Whether the frame was received or sent
+     * @param bytes     The payload of the frame
+     */
+    public void record(Direction direction, byte[] bytes) throws IOException {
+        record(direction, BluetoothChatManager.DEFAULT_MESSAGE_TYPE, bytes);
+    }
+
+    /**
+     * Appends a frame to the recording.
+     *
+     * @param direction   Whether the frame was received or sent
+     * @param messageType The message type of the frame
+     * @param bytes       The payload of the frame
+     */
+    public synchronized void record(Direction direction, int messageType, byte[] bytes) throws IOException {
+        long now = System.nanoTime();
+        out.writeByte(direction.ordinal());
+        VarInt.write(out, TimeUnit.NANOSECONDS.toMicros(Math.max(0, now - lastNanos)));
+        out.writeByte(messageType);
+        VarInt.write(out, bytes.length);
+        out.write(bytes);
+        lastNanos = now;
+        frames++;
+    }
+
+    /**
+     * Return the number of frames recorded so far.
+     */
+    public synchronized int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Writes any buffered frames to the underlying stream.
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * The direction of a recorded frame as seen by the recording manager.
+     */
+    public enum Direction {
+        INBOUND, // read from the remote device
+        OUTBOUND // written to the remote device
+    }
+}
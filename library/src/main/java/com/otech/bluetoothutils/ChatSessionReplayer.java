@@ -0,0 +1,174 @@
+package com.otech.bluetoothutils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a session recorded by {@link ChatSessionRecorder} and replays it through a pair of
+ * connected {@link BluetoothChatManager}s, usually a loopback pair created with
+ * {@link ChatLoopback#connect(BluetoothChatManager, BluetoothChatManager)}.
+ * <p>
+ * Outbound frames are written by the local manager and inbound frames by the peer, so the local
+ * manager sees the same traffic it saw when the session was recorded.
+ */
+public class ChatSessionReplayer implements Closeable {
+
+    private final DataInputStream in;
+    private final int version;
+    private final long startMillis;
+
+    /**
+     * Opens a recorded session file.
+     *
+     * @param file The session file
+     * @throws IOException If the file could not be opened or is not a session recording
+     */
+    public ChatSessionReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Opens a recorded session.
+     *
+     * @param inputStream The recorded session, it is closed when the replayer is closed
+     * @throws IOException If the stream is not a session recording
+     */
+    public ChatSessionReplayer(InputStream inputStream) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != ChatSessionRecorder.MAGIC) {
+            throw new IOException("Not a chat session recording");
+        }
+        this.version = in.readUnsignedByte();
+        if (version != ChatSessionRecorder.VERSION && version != ChatSessionRecorder.VERSION_1) {
+            throw new IOException("Unsupported chat session recording version " + version);
+        }
+        this.startMillis = in.readLong();
+    }
+
+    /**
+     * Return the wall clock time at which the session was recorded.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Reads the next recorded frame.
+     *
+     * @return The frame or null at the end of the recording
+     */
+    public Frame readFrame() throws IOException {
+        int direction = in.read();
+        if (direction == -1) {
+            return null;
+        }
+        if (direction >= ChatSessionRecorder.Direction.values().length) {
+            throw new IOException("Corrupt chat session recording");
+        }
+        try {
+            long delayMicros = VarInt.read(in);
+            int messageType = version == ChatSessionRecorder.VERSION_1
+                    ? BluetoothChatManager.DEFAULT_MESSAGE_TYPE : in.readUnsignedByte();
+            long length = VarInt.read(in);
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt chat session recording");
+            }
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            return new Frame(ChatSessionRecorder.Direction.values()[direction], delayMicros, messageType, bytes);
+        } catch (EOFException e) {
+            // A recording that was not closed properly may end anywhere in a partial frame
+            return null;
+        }
+    }
+
+    /**
+     * Replays the remaining frames of the recording. Blocks until all the frames have been written.
+     *
+     * @param local    Writes the outbound frames, it receives the inbound frames
+     * @param peer     Writes the inbound frames
+     * @param realTime Keep the recorded delays between frames, otherwise replay as fast as possible
+     * @return The number of frames replayed
+     * @throws InterruptedException  If the thread is interrupted while waiting for the next frame
+     * @throws IllegalStateException If a frame has a message type and message types are not
+     *                               enabled on the managers
+     */
+    public int replay(BluetoothChatManager local, BluetoothChatManager peer, boolean realTime)
+            throws IOException, InterruptedException {
+        int frames = 0;
+        long startNanos = System.nanoTime();
+        long offsetMicros = 0;
+        Frame frame;
+        while ((frame = readFrame()) != null) {
+            if (realTime) {
+                offsetMicros += frame.getDelayMicros();
+                long sleepMillis = TimeUnit.MICROSECONDS.toMillis(offsetMicros)
+                        - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+            } else if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (frame.getDirection() == ChatSessionRecorder.Direction.OUTBOUND) {
+                local.writeInternal(frame.getBytes(), frame.getMessageType());
+            } else {
+                peer.writeInternal(frame.getBytes(), frame.getMessageType());
+            }
+            frames++;
+        }
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * A single recorded frame.
+     */
+    public static class Frame {
+        private final ChatSessionRecorder.Direction direction;
+        private final long delayMicros;
+        private final int messageType;
+        private final byte[] bytes;
+
+        Frame(ChatSessionRecorder.Direction direction, long delayMicros, int messageType, byte[] bytes) {
+            this.direction = direction;
+            this.delayMicros = delayMicros;
+            this.messageType = messageType;
+            this.bytes = bytes;
+        }
+
+        public ChatSessionRecorder.Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * Return the microseconds elapsed between the previous frame and this one.
+         */
+        public long getDelayMicros() {
+            return delayMicros;
+        }
+
+        /**
+         * Return the message type of the frame, the default type in version 1 recordings.
+         */
+        public int getMessageType() {
+            return messageType;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.otech.bluetoothutils;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exposes {@link BluetoothChatManager} connections as TCP endpoints on localhost, so other local
+ * processes can use the Bluetooth links without going through the app's listeners.
+ * <p>
+ * Every exposed manager gets its own port. Local clients exchange frames made of a 4 byte big
+ * endian payload length followed by the payload. Every message the manager reads is sent to all
+ * the clients of its port, and every frame a client sends is written to the manager. A single
+ * selector thread serves all the ports and clients of a gateway. Messages read from Bluetooth are
+ * copied once into a direct buffer shared by all the clients, and clients are read through direct
+ * buffers.
+ * <p>
+ * A client that falls more than 4 MB behind is disconnected. A client whose frame does not fit in
+ * the write queue of the connection is not read until the queue drains, the selector keeps
+ * serving the other clients and ports. A client frame larger than the maximum frame size of the
+ * manager disconnects the client. The app needs the INTERNET permission to open the ports.
+ * <p>
+ * The ports have no authentication: any app on the device can connect to them, read everything
+ * the peer sends and write to the peer. Only expose connections whose data every app on the
+ * device may see.
+ */
+public class ChatTcpGateway implements Closeable {
+
+    private static final String TAG = "ChatTcpGateway";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CLIENT_QUEUED_BYTES = 4 * 1024 * 1024;
+    // How often clients waiting for room in the write queue of their connection try again
+    private static final long RETRY_MILLIS = 20;
+
+    // Runs the listener calls on the connection's reader thread, the selector does the rest
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<BluetoothChatManager, Endpoint> endpoints = new HashMap<>();
+    // Clients not read until their connection takes their frame, only used on the selector thread
+    private final List<Client> pausedClients = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Constructs a gateway and starts its selector thread.
+     */
+    public ChatTcpGateway() throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread("ChatTcpGateway") {
+            @Override
+            public void run() {
+                select();
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Opens a localhost port for the connection of the given manager. Exposing a manager that is
+     * already exposed returns its current port.
+     *
+     * @param manager The manager whose connection is exposed
+     * @param port    The port to listen on, or 0 to pick a free port
+     * @return The port local clients connect to
+     */
+    public synchronized int expose(BluetoothChatManager manager, int port) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Gateway is closed");
+        }
+        Endpoint endpoint = endpoints.get(manager);
+        if (endpoint != null) {
+            return endpoint.port;
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        endpoint = new Endpoint(manager, server);
+        endpoints.put(manager, endpoint);
+        manager.addListener(endpoint, DIRECT_EXECUTOR);
+
+        final Endpoint registered = endpoint;
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    registered.server.register(selector, SelectionKey.OP_ACCEPT, registered);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to listen on port " + registered.port, e);
+                    registered.close();
+                }
+            }
+        });
+        Log.i(TAG, "Exposed connection on port " + endpoint.port);
+        return endpoint.port;
+    }
+
+    /**
+     * Closes the port of the given manager and disconnects its clients. The Bluetooth connection
+     * is not affected.
+     */
+    public synchronized void unexpose(BluetoothChatManager manager) {
+        final Endpoint endpoint = endpoints.remove(manager);
+        if (endpoint == null) {
+            return;
+        }
+        manager.removeListener(endpoint);
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.close();
+            }
+        });
+    }
+
+    /**
+     * Return the port of the given manager, or -1 if it is not exposed.
+     */
+    public synchronized int getPort(BluetoothChatManager manager) {
+        Endpoint endpoint = endpoints.get(manager);
+        return endpoint != null ? endpoint.port : -1;
+    }
+
+    /**
+     * Closes all the ports and stops the selector thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Map.Entry<BluetoothChatManager, Endpoint> entry : endpoints.entrySet()) {
+                entry.getKey().removeListener(entry.getValue());
+            }
+        }
+        selector.wakeup();
+    }
+
+    private void runOnSelector(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    private void select() {
+        try {
+            while (!closed) {
+                selector.select(pausedClients.isEmpty() ? 0 : RETRY_MILLIS);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (Client client : new ArrayList<>(pausedClients)) {
+                    client.resume();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        ((Endpoint) key.attachment()).accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            client.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.write();
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Client disconnected", e);
+                        client.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        } finally {
+            synchronized (this) {
+                closed = true;
+                for (Map.Entry<BluetoothChatManager, Endpoint> entry : endpoints.entrySet()) {
+                    // Nothing runs the tasks of the listeners anymore
+                    entry.getKey().removeListener(entry.getValue());
+                    entry.getValue().close();
+                }
+                endpoints.clear();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of selector failed", e);
+            }
+        }
+    }
+
+    /**
+     * The port of one manager. It receives the messages the manager reads on the connection's
+     * reader thread and hands them to the selector thread.
+     */
+    private class Endpoint implements BluetoothChatManager.BluetoothChatServiceListener {
+        final BluetoothChatManager manager;
+        final ServerSocketChannel server;
+        final int port;
+        final List<Client> clients = new ArrayList<>();
+        final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        private final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                ByteBuffer frame;
+                while ((frame = pending.poll()) != null) {
+                    // Iterate over a copy, a client that falls behind is removed
+                    for (Client client : new ArrayList<>(clients)) {
+                        client.enqueue(frame.duplicate());
+                    }
+                }
+            }
+        };
+
+        Endpoint(BluetoothChatManager manager, ServerSocketChannel server) {
+            this.manager = manager;
+            this.server = server;
+            this.port = server.socket().getLocalPort();
+        }
+
+        void accept() {
+            try {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                Client client = new Client(this, channel);
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+                Log.i(TAG, "Client connected on port " + port);
+            } catch (IOException e) {
+                Log.e(TAG, "accept() on port " + port + " failed", e);
+            }
+        }
+
+        void close() {
+            for (Client client : new ArrayList<>(clients)) {
+                client.close();
+            }
+            try {
+                server.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of port " + port + " failed", e);
+            }
+        }
+
+        @Override
+        public void chatServiceMessageRead(byte[] message) {
+            ByteBuffer frame = ByteBuffer.allocateDirect(4 + message.length);
+            frame.putInt(message.length).put(message).flip();
+            pending.offer(frame);
+            if (flushScheduled.compareAndSet(false, true)) {
+                runOnSelector(flush);
+            }
+        }
+
+        @Override
+        public void chatServiceStateChanged(BluetoothChatManager.BluetoothChatServiceState state) {
+        }
+
+        @Override
+        public void chatServiceMessageWritten(byte[] bytes) {
+        }
+
+        @Override
+        public void chatServiceConnectedTo(BluetoothDevice device) {
+        }
+
+        @Override
+        public void chatError(String message) {
+        }
+    }
+
+    /**
+     * A local client of a port. Only used on the selector thread.
+     */
+    private class Client {
+        final Endpoint endpoint;
+        final SocketChannel channel;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        SelectionKey key;
+        long queuedBytes;
+        byte[] body;
+        int bodyOffset;
+        boolean paused;
+
+        Client(Endpoint endpoint, SocketChannel channel) {
+            this.endpoint = endpoint;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads the available bytes and writes every complete frame to the manager.
+         */
+        void read() throws IOException {
+            if (channel.read(readBuffer) == -1) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Writes the frame the connection did not take and the complete frames after it, and
+         * reads the client again once they are all taken.
+         */
+        void resume() {
+            try {
+                process();
+            } catch (IOException e) {
+                Log.w(TAG, "Client disconnected", e);
+                close();
+            }
+        }
+
+        /**
+         * Writes every complete frame of the read buffer to the manager. Stops reading from the
+         * client when the write queue of the connection is full.
+         */
+        private void process() throws IOException {
+            readBuffer.flip();
+            while (true) {
+                if (body == null) {
+                    if (readBuffer.remaining() < 4) {
+                        break;
+                    }
+                    int length = readBuffer.getInt();
+                    if (length < 0 || length > endpoint.manager.getMaxFrameSize()) {
+                        throw new IOException("Invalid client frame length " + length);
+                    }
+                    body = new byte[length];
+                    bodyOffset = 0;
+                }
+                int count = Math.min(readBuffer.remaining(), body.length - bodyOffset);
+                readBuffer.get(body, bodyOffset, count);
+                bodyOffset += count;
+                if (bodyOffset < body.length) {
+                    break;
+                }
+                if (!endpoint.manager.offer(body)) {
+                    setPaused(true);
+                    break;
+                }
+                body = null;
+            }
+            readBuffer.compact();
+            if (paused && body == null) {
+                setPaused(false);
+            }
+        }
+
+        private void setPaused(boolean paused) {
+            if (this.paused == paused) {
+                return;
+            }
+            this.paused = paused;
+            if (paused) {
+                pausedClients.add(this);
+            } else {
+                pausedClients.remove(this);
+            }
+            updateInterestOps();
+        }
+
+        private void updateInterestOps() {
+            if (key.isValid()) {
+                int ops = paused ? 0 : SelectionKey.OP_READ;
+                key.interestOps(queue.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void enqueue(ByteBuffer frame) {
+            if (queuedBytes + frame.remaining() > MAX_CLIENT_QUEUED_BYTES) {
+                Log.w(TAG, "Client on port " + endpoint.port + " fell behind, disconnecting");
+                close();
+                return;
+            }
+            queue.addLast(frame);
+            queuedBytes += frame.remaining();
+            try {
+                write();
+            } catch (IOException e) {
+                Log.w(TAG, "Client disconnected", e);
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the queue as the socket takes and waits for it to be writable again
+         * if anything is left.
+         */
+        void write() throws IOException {
+            ByteBuffer frame;
+            while ((frame = queue.peekFirst()) != null) {
+                int written = channel.write(frame);
+                queuedBytes -= written;
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                queue.pollFirst();
+            }
+            updateInterestOps();
+        }
+
+        void close() {
+            endpoint.clients.remove(this);
+            pausedClients.remove(this);
+            queue.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of client failed", e);
+            }
+        }
+    }
+}
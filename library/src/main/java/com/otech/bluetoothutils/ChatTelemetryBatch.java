@@ -0,0 +1,272 @@
+package com.otech.bluetoothutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A batch of numeric records with a timestamp and a fixed number of int and float fields, stored
+ * and encoded column by column so a whole batch of samples is sent as a single message.
+ * <p>
+ * Timestamps are encoded as the difference to the previous timestamp, ints as zigzag varints and
+ * floats as the XOR of their bits with the previous value of the column, which is small for values
+ * that change slowly. Samples taken at a steady rate with slowly changing values take a few bytes
+ * each instead of their full width.
+ * <p>
+ * The batch is written like any other message and decoded on the receiver into primitive arrays:
+ * <pre>
+ * ChatTelemetryBatch batch = new ChatTelemetryBatch(2, 1);
+ * int row = batch.addRecord(timestamp);
+ * batch.setInt(row, 0, steps);
+ * batch.setInt(row, 1, heartRate);
+ * batch.setFloat(row, 0, temperature);
+ * ...
+ * manager.write(batch.encode());
+ * batch.clear();
+ *
+ * // On the receiver
+ * ChatTelemetryBatch batch = ChatTelemetryBatch.decode(message);
+ * long[] timestamps = batch.getTimestamps();
+ * </pre>
+ * A batch is not thread safe.
+ */
+public class ChatTelemetryBatch {
+
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_COLUMNS = 1024;
+
+    private final int intColumns;
+    private final int floatColumns;
+
+    private long[] timestamps;
+    private int[][] ints;
+    private float[][] floats;
+    private int size;
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param intColumns   The number of int fields of every record
+     * @param floatColumns The number of float fields of every record
+     */
+    public ChatTelemetryBatch(int intColumns, int floatColumns) {
+        this(intColumns, floatColumns, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param intColumns   The number of int fields of every record
+     * @param floatColumns The number of float fields of every record
+     * @param capacity     The number of records the batch holds before it grows
+     */
+    public ChatTelemetryBatch(int intColumns, int floatColumns, int capacity) {
+        if (intColumns < 0 || floatColumns < 0 || capacity < 0) {
+            throw new IllegalArgumentException("Negative column count or capacity");
+        }
+        this.intColumns = intColumns;
+        this.floatColumns = floatColumns;
+        this.timestamps = new long[capacity];
+        this.ints = new int[intColumns][capacity];
+        this.floats = new float[floatColumns][capacity];
+    }
+
+    /**
+     * Adds a record with all its fields set to zero.
+     *
+     * @param timestamp The timestamp of the record, for example in milliseconds
+     * @return The row of the new record
+     */
+    public int addRecord(long timestamp) {
+        if (size == timestamps.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            for (int i = 0; i < intColumns; i++) {
+                ints[i] = Arrays.copyOf(ints[i], capacity);
+            }
+            for (int i = 0; i < floatColumns; i++) {
+                floats[i] = Arrays.copyOf(floats[i], capacity);
+            }
+        }
+        timestamps[size] = timestamp;
+        for (int i = 0; i < intColumns; i++) {
+            ints[i][size] = 0;
+        }
+        for (int i = 0; i < floatColumns; i++) {
+            floats[i][size] = 0;
+        }
+        return size++;
+    }
+
+    public void setInt(int row, int column, int value) {
+        checkRow(row);
+        ints[column][row] = value;
+    }
+
+    public void setFloat(int row, int column, float value) {
+        checkRow(row);
+        floats[column][row] = value;
+    }
+
+    public long getTimestamp(int row) {
+        checkRow(row);
+        return timestamps[row];
+    }
+
+    public int getInt(int row, int column) {
+        checkRow(row);
+        return ints[column][row];
+    }
+
+    public float getFloat(int row, int column) {
+        checkRow(row);
+        return floats[column][row];
+    }
+
+    /**
+     * Return the timestamps of the records. The array may be longer than {@link #size()}.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Return the values of an int field of all the records. The array may be longer than
+     * {@link #size()}.
+     */
+    public int[] getIntColumn(int column) {
+        return ints[column];
+    }
+
+    /**
+     * Return the values of a float field of all the records. The array may be longer than
+     * {@link #size()}.
+     */
+    public float[] getFloatColumn(int column) {
+        return floats[column];
+    }
+
+    public int getIntColumnCount() {
+        return intColumns;
+    }
+
+    public int getFloatColumnCount() {
+        return floatColumns;
+    }
+
+    /**
+     * Return the number of records in the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the records, keeping the arrays so the batch can be refilled without allocating.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Return the batch encoded as a single message.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + size * (2 + intColumns + floatColumns * 2));
+        try {
+            out.write(VERSION);
+            VarInt.write(out, size);
+            VarInt.write(out, intColumns);
+            VarInt.write(out, floatColumns);
+
+            long previousTimestamp = 0;
+            for (int row = 0; row < size; row++) {
+                VarInt.write(out, zigZag(timestamps[row] - previousTimestamp));
+                previousTimestamp = timestamps[row];
+            }
+            for (int column = 0; column < intColumns; column++) {
+                int[] values = ints[column];
+                for (int row = 0; row < size; row++) {
+                    VarInt.write(out, zigZag(values[row]));
+                }
+            }
+            for (int column = 0; column < floatColumns; column++) {
+                float[] values = floats[column];
+                int previousBits = 0;
+                for (int row = 0; row < size; row++) {
+                    int bits = Float.floatToIntBits(values[row]);
+                    // Similar floats share their sign, exponent and high mantissa bits
+                    VarInt.write(out, (bits ^ previousBits) & 0xFFFFFFFFL);
+                    previousBits = bits;
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a message written by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If the message is not an encoded batch
+     */
+    public static ChatTelemetryBatch decode(byte[] message) {
+        ByteArrayInputStream in = new ByteArrayInputStream(message);
+        try {
+            if (in.read() != VERSION) {
+                throw new IllegalArgumentException("Unknown batch version");
+            }
+            long size = VarInt.read(in);
+            long intColumns = VarInt.read(in);
+            long floatColumns = VarInt.read(in);
+            // Every value takes at least a byte, which bounds what a corrupt header can allocate
+            int available = in.available();
+            if (intColumns > MAX_COLUMNS || floatColumns > MAX_COLUMNS || size > available
+                    || size * (1 + intColumns + floatColumns) > available) {
+                throw new IllegalArgumentException("Batch is truncated");
+            }
+
+            ChatTelemetryBatch batch = new ChatTelemetryBatch((int) intColumns, (int) floatColumns, (int) size);
+            batch.size = (int) size;
+            long timestamp = 0;
+            for (int row = 0; row < size; row++) {
+                timestamp += unZigZag(VarInt.read(in));
+                batch.timestamps[row] = timestamp;
+            }
+            for (int column = 0; column < intColumns; column++) {
+                int[] values = batch.ints[column];
+                for (int row = 0; row < size; row++) {
+                    values[row] = (int) unZigZag(VarInt.read(in));
+                }
+            }
+            for (int column = 0; column < floatColumns; column++) {
+                float[] values = batch.floats[column];
+                int bits = 0;
+                for (int row = 0; row < size; row++) {
+                    bits ^= (int) VarInt.read(in);
+                    values[row] = Float.intBitsToFloat(bits);
+                }
+            }
+            return batch;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Batch is truncated", e);
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,237 @@
+package com.otech.bluetoothutils;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Streams fixed layout records, such as sensor readings, over a {@link BluetoothChatManager}
+ * connection. Instead of sending every record in full, a keyframe holding the whole record is sent
+ * every few records and the records in between are sent as the difference to the previous one.
+ * Consecutive records that barely differ take only a few bytes on the air.
+ * <p>
+ * The receiving manager rebuilds the full records and delivers them to its listeners through
+ * {@link BluetoothChatManager.BluetoothChatServiceListener#chatServiceMessageRead(byte[])} with
+ * the message type given to the stream, so the receiver needs no setup besides enabling message
+ * types. Message types must be enabled on both managers.
+ * <p>
+ * A delta is the XOR of a record with the previous record, written as runs of unchanged bytes
+ * followed by runs of changed bytes, both as varint lengths. A frame of the stream is laid out as
+ * <pre>
+ * [kind 1 byte][message type 1 byte][sequence 1 byte][record or delta]
+ * </pre>
+ * A delta is only applied to the record with the previous sequence number, so a receiver that
+ * missed a frame, for example because the connection was replaced, skips deltas until the next
+ * keyframe.
+ *
+ * @see BluetoothChatManager#setMessageTypesEnabled(boolean)
+ */
+public class ChatTelemetryStream {
+
+    /**
+     * The number of records sent between two keyframes by default.
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 50;
+
+    static final int KIND_KEYFRAME = 0;
+    static final int KIND_DELTA = 1;
+    static final int HEADER_LENGTH = 3;
+
+    private static final String TAG = "ChatTelemetryStream";
+
+    private final BluetoothChatManager manager;
+    private final int messageType;
+    private final int keyframeInterval;
+
+    private byte[] previous;
+    private int sequence;
+    private int sinceKeyframe;
+    private int connectionSerial = -1;
+    private long recordBytes;
+    private long sentBytes;
+
+    /**
+     * Constructs a stream sending keyframes every {@link #DEFAULT_KEYFRAME_INTERVAL} records.
+     *
+     * @param manager     The manager the records are written to
+     * @param messageType The message type the receiver delivers the records with
+     */
+    public ChatTelemetryStream(BluetoothChatManager manager, int messageType) {
+        this(manager, messageType, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Constructs a stream.
+     *
+     * @param manager          The manager the records are written to
+     * @param messageType      The message type the receiver delivers the records with
+     * @param keyframeInterval The number of records sent between two keyframes. Smaller values
+     *                         let a receiver recover sooner, larger values send fewer bytes.
+     */
+    public ChatTelemetryStream(BluetoothChatManager manager, int messageType, int keyframeInterval) {
+        if (messageType < 0 || messageType > BluetoothChatManager.MAX_APPLICATION_MESSAGE_TYPE) {
+            throw new IllegalArgumentException("Invalid message type " + messageType);
+        }
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        this.manager = manager;
+        this.messageType = messageType;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Writes the next record of the stream. A keyframe is sent for the first record of every
+     * connection, every keyframeInterval records and whenever the record length changes.
+     *
+     * @param record The full record, it is copied so the caller can reuse the array
+     */
+    public synchronized void write(byte[] record) {
+        int serial = manager.getConnectionSerial();
+        byte[] delta = null;
+        if (previous != null && previous.length == record.length && serial == connectionSerial
+                && sinceKeyframe < keyframeInterval) {
+            delta = encodeDelta(previous, record);
+            // A delta of a record that changed completely is not worth it
+            if (delta.length >= record.length) {
+                delta = null;
+            }
+        }
+
+        sequence = (sequence + 1) & 0xFF;
+        byte[] body = delta != null ? delta : record;
+        byte[] frame = new byte[HEADER_LENGTH + body.length];
+        frame[0] = (byte) (delta != null ? KIND_DELTA : KIND_KEYFRAME);
+        frame[1] = (byte) messageType;
+        frame[2] = (byte) sequence;
+        System.arraycopy(body, 0, frame, HEADER_LENGTH, body.length);
+
+        sinceKeyframe = delta != null ? sinceKeyframe + 1 : 0;
+        connectionSerial = serial;
+        previous = record.clone();
+        recordBytes += record.length;
+        sentBytes += frame.length;
+        manager.writeInternal(frame, BluetoothChatManager.TELEMETRY_MESSAGE_TYPE);
+    }
+
+    /**
+     * Return the total length of the records written to this stream.
+     */
+    public synchronized long getRecordBytes() {
+        return recordBytes;
+    }
+
+    /**
+     * Return the total length of the frames sent for the records of this stream.
+     */
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Return the XOR of the two records as runs of unchanged and changed bytes. Unchanged bytes at
+     * the end of the record are left out.
+     */
+    static byte[] encodeDelta(byte[] previous, byte[] record) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            int i = 0;
+            while (i < record.length) {
+                int unchanged = i;
+                while (unchanged < record.length && previous[unchanged] == record[unchanged]) {
+                    unchanged++;
+                }
+                if (unchanged == record.length) {
+                    break;
+                }
+                int changed = unchanged;
+                while (changed < record.length && previous[changed] != record[changed]) {
+                    changed++;
+                }
+                VarInt.write(out, unchanged - i);
+                VarInt.write(out, changed - unchanged);
+                for (int j = unchanged; j < changed; j++) {
+                    out.write(previous[j] ^ record[j]);
+                }
+                i = changed;
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the record rebuilt from the previous record and a delta.
+     *
+     * @throws ChatFrameException If the delta does not fit the previous record
+     */
+    static byte[] applyDelta(byte[] previous, byte[] delta, int offset) throws ChatFrameException {
+        byte[] record = previous.clone();
+        ByteArrayInputStream in = new ByteArrayInputStream(delta, offset, delta.length - offset);
+        try {
+            int i = 0;
+            while (in.available() > 0) {
+                i += (int) VarInt.read(in);
+                int changed = (int) VarInt.read(in);
+                if (i < 0 || changed < 0 || changed > record.length - i || changed > in.available()) {
+                    throw new ChatFrameException("Telemetry delta does not fit the record");
+                }
+                for (int end = i + changed; i < end; i++) {
+                    record[i] ^= (byte) in.read();
+                }
+            }
+        } catch (ChatFrameException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ChatFrameException("Malformed telemetry delta");
+        }
+        return record;
+    }
+
+    /**
+     * Rebuilds the records of the telemetry streams received on one connection.
+     */
+    static class Decoder {
+        private final byte[][] previous = new byte[BluetoothChatManager.MAX_APPLICATION_MESSAGE_TYPE + 1][];
+        private final int[] sequences = new int[BluetoothChatManager.MAX_APPLICATION_MESSAGE_TYPE + 1];
+
+        /**
+         * Return the message type the records of the frame are delivered with.
+         */
+        int readMessageType(byte[] frame) throws ChatFrameException {
+            if (frame.length < HEADER_LENGTH || (frame[1] & 0xFF) > BluetoothChatManager.MAX_APPLICATION_MESSAGE_TYPE) {
+                throw new ChatFrameException("Malformed telemetry frame");
+            }
+            return frame[1] & 0xFF;
+        }
+
+        /**
+         * Return the record of the frame or null if it is a delta that can not be applied.
+         */
+        byte[] decode(byte[] frame) throws ChatFrameException {
+            int type = readMessageType(frame);
+            int sequence = frame[2] & 0xFF;
+            byte[] record;
+            if (frame[0] == KIND_KEYFRAME) {
+                record = new byte[frame.length - HEADER_LENGTH];
+                System.arraycopy(frame, HEADER_LENGTH, record, 0, record.length);
+            } else if (frame[0] == KIND_DELTA) {
+                if (previous[type] == null || sequence != ((sequences[type] + 1) & 0xFF)) {
+                    Log.w(TAG, "Skipping telemetry delta until the next keyframe");
+                    previous[type] = null;
+                    return null;
+                }
+                record = applyDelta(previous[type], frame, HEADER_LENGTH);
+            } else {
+                throw new ChatFrameException("Unknown telemetry frame kind " + frame[0]);
+            }
+            previous[type] = record;
+            sequences[type] = sequence;
+            // The listeners get their own copy so they can not change the next delta's base
+            return record.clone();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.otech.bluetoothutils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum used to protect chat frames. {@link #newChecksum()} returns the
+ * platform's intrinsic {@code java.util.zip.CRC32C} when the runtime provides it and falls back to
+ * this slicing-by-8 implementation, which produces the same values, otherwise.
+ */
+final class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[][] TABLES = new int[8][256];
+    private static final Constructor<? extends Checksum> PLATFORM_CRC32C;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = TABLES[t - 1][i];
+                TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xFF];
+            }
+        }
+
+        Constructor<? extends Checksum> platform;
+        try {
+            platform = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getDeclaredConstructor();
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            platform = null;
+        }
+        PLATFORM_CRC32C = platform;
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * Return a new CRC32C checksum, backed by the platform implementation if there is one.
+     */
+    static Checksum newChecksum() {
+        if (PLATFORM_CRC32C != null) {
+            try {
+                return PLATFORM_CRC32C.newInstance();
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                // Fall back to our own implementation
+            }
+        }
+        return new Crc32c();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        while (len >= 8) {
+            int one = ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+                    | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24) ^ c;
+            int two = (b[off + 4] & 0xFF) | (b[off + 5] & 0xFF) << 8
+                    | (b[off + 6] & 0xFF) << 16 | (b[off + 7] & 0xFF) << 24;
+            c = t7[one & 0xFF] ^ t6[(one >>> 8) & 0xFF] ^ t5[(one >>> 16) & 0xFF] ^ t4[one >>> 24]
+                    ^ t3[two & 0xFF] ^ t2[(two >>> 8) & 0xFF] ^ t1[(two >>> 16) & 0xFF] ^ t0[two >>> 24];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,76 @@
+package com.otech.bluetoothutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message waiting in the write queue of a connection. The frames are encoded lazily by the
+ * writer thread and kept, so a message is only framed once. A broadcast message waits in the
+ * queues of several connections and is framed once per distinct frame format.
+ */
+final class OutboundMessage {
+
+    private static final AtomicInteger MESSAGE_IDS = new AtomicInteger();
+
+    final byte[] payload;
+    final int type;
+    final int messageId;
+    final int traceId;
+    final long enteredNanos;
+    final int senderMillis;
+    final Callback callback;
+
+    private final List<ChatFrameFormat> formats = new ArrayList<>(1);
+    private final List<ByteBuffer[]> frames = new ArrayList<>(1);
+
+    OutboundMessage(byte[] payload, int type, int traceId) {
+        this(payload, type, traceId, null);
+    }
+
+    OutboundMessage(byte[] payload, int type, int traceId, Callback callback) {
+        this.payload = payload;
+        this.callback = callback;
+        this.type = type;
+        this.messageId = MESSAGE_IDS.incrementAndGet();
+        this.traceId = traceId;
+        this.enteredNanos = System.nanoTime();
+        this.senderMillis = (int) System.currentTimeMillis();
+    }
+
+    /**
+     * Return the frames of this message in the given format, encoding them on first use.
+     */
+    synchronized ByteBuffer[] frames(ChatFrameFormat format) {
+        int index = formats.indexOf(format);
+        if (index != -1) {
+            return frames.get(index);
+        }
+        ByteBuffer[] encoded = format.encode(this);
+        formats.add(format);
+        frames.add(encoded);
+        return encoded;
+    }
+
+    void written(BluetoothChatManager manager) {
+        if (callback != null) {
+            callback.written(manager, this);
+        }
+    }
+
+    void failed(BluetoothChatManager manager) {
+        if (callback != null) {
+            callback.failed(manager, this);
+        }
+    }
+
+    /**
+     * Tells the sender when the message left, or could not leave, a connection.
+     */
+    interface Callback {
+        void written(BluetoothChatManager manager, OutboundMessage message);
+
+        void failed(BluetoothChatManager manager, OutboundMessage message);
+    }
+}
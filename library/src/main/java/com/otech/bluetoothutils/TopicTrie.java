@@ -0,0 +1,129 @@
+package com.otech.bluetoothutils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps topic filters to the subscribers of each filter and finds the subscribers of a topic in
+ * time proportional to the number of topic levels rather than the number of filters.
+ * <p>
+ * Topics are made of levels separated by '/'. In a filter, a '+' level matches any single level
+ * and a trailing '#' level matches any number of remaining levels, including none, so
+ * "sensors/#" matches "sensors" and "sensors/imu/accel".
+ */
+final class TopicTrie<T> {
+
+    static final String SINGLE_LEVEL_WILDCARD = "+";
+    static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Throws an IllegalArgumentException if the filter is empty or has a '#' before its last
+     * level.
+     */
+    static void checkFilter(String filter) {
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic filter");
+        }
+        int wildcard = filter.indexOf(MULTI_LEVEL_WILDCARD);
+        if (wildcard != -1 && (wildcard != filter.length() - 1 || (wildcard > 0 && filter.charAt(wildcard - 1) != '/'))) {
+            throw new IllegalArgumentException("'#' must be the last level of " + filter);
+        }
+    }
+
+    synchronized boolean add(String filter, T subscriber) {
+        checkFilter(filter);
+        Node<T> node = root;
+        for (String level : filter.split("/", -1)) {
+            Node<T> child = node.children.get(level);
+            if (child == null) {
+                child = new Node<>();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        return node.subscribers.add(subscriber);
+    }
+
+    synchronized boolean remove(String filter, T subscriber) {
+        return remove(root, filter.split("/", -1), 0, subscriber);
+    }
+
+    private boolean remove(Node<T> node, String[] levels, int index, T subscriber) {
+        if (index == levels.length) {
+            return node.subscribers.remove(subscriber);
+        }
+        Node<T> child = node.children.get(levels[index]);
+        if (child == null || !remove(child, levels, index + 1, subscriber)) {
+            return false;
+        }
+        if (child.isEmpty()) {
+            node.children.remove(levels[index]);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the subscriber from all the filters it subscribed to.
+     */
+    synchronized void removeAll(T subscriber) {
+        removeAll(root, subscriber);
+    }
+
+    private void removeAll(Node<T> node, T subscriber) {
+        node.subscribers.remove(subscriber);
+        Iterator<Node<T>> children = node.children.values().iterator();
+        while (children.hasNext()) {
+            Node<T> child = children.next();
+            removeAll(child, subscriber);
+            if (child.isEmpty()) {
+                children.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the subscribers of all the filters matching the topic.
+     */
+    synchronized Set<T> match(String topic) {
+        Set<T> matches = new LinkedHashSet<>();
+        match(root, topic.split("/", -1), 0, matches);
+        return matches;
+    }
+
+    private void match(Node<T> node, String[] levels, int index, Set<T> matches) {
+        Node<T> rest = node.children.get(MULTI_LEVEL_WILDCARD);
+        if (rest != null) {
+            matches.addAll(rest.subscribers);
+        }
+        if (index == levels.length) {
+            matches.addAll(node.subscribers);
+            return;
+        }
+        Node<T> child = node.children.get(levels[index]);
+        if (child != null) {
+            match(child, levels, index + 1, matches);
+        }
+        Node<T> any = node.children.get(SINGLE_LEVEL_WILDCARD);
+        if (any != null) {
+            match(any, levels, index + 1, matches);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    private static class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Set<T> subscribers = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.otech.bluetoothutils.ble;
+
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Advertises the packets of the scheduled messages in all the slots of an advertiser.
+ * <p>
+ * Every slot holds its packet for the dwell time of the packet's message and then takes the next
+ * packet from the scheduler, so an advertiser with several slots goes through the messages several
+ * times faster. A packet already advertised in another slot is not advertised twice, and slots
+ * that failed are skipped. The loop only allocates when messages are added.
+ */
+final class BleAdvertiseLoop<T> {
+
+    private final BleAdvertiser<T> advertiser;
+    private final BleScheduler<Packet<T>> scheduler = new BleScheduler<>();
+
+    BleAdvertiseLoop(BleAdvertiser<T> advertiser) {
+        this.advertiser = advertiser;
+    }
+
+    BleAdvertiser<T> getAdvertiser() {
+        return advertiser;
+    }
+
+    /**
+     * Adds a message, or replaces the message with the same ID.
+     *
+     * @param serviceData The service data of the packets of the message
+     * @param weight      The share of the slots of the message
+     * @param dwellMillis How long each packet of the message is advertised
+     */
+    void put(String id, byte[][] serviceData, int weight, long dwellMillis) {
+        Packet<T>[] packets = newPackets(serviceData.length);
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = new Packet<>(advertiser.prepare(serviceData[i], dwellMillis), TimeUnit.MILLISECONDS.toNanos(dwellMillis));
+        }
+        scheduler.put(id, packets, weight);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Packet<T>[] newPackets(int length) {
+        return (Packet<T>[]) Array.newInstance(Packet.class, length);
+    }
+
+    boolean remove(String id) {
+        return scheduler.remove(id);
+    }
+
+    void clear() {
+        scheduler.clear();
+    }
+
+    List<String> getIds() {
+        return scheduler.getIds();
+    }
+
+    /**
+     * Advertises until the thread is interrupted or all the slots failed, then closes the
+     * advertiser.
+     */
+    void run() throws InterruptedException {
+        int slots = advertiser.getSlotCount();
+        Object[] current = new Object[slots];
+        long[] deadlines = new long[slots];
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long now = System.nanoTime();
+                long next = Long.MAX_VALUE;
+                boolean available = false;
+                for (int slot = 0; slot < slots; slot++) {
+                    if (!advertiser.isAvailable(slot)) {
+                        current[slot] = null;
+                        continue;
+                    }
+                    available = true;
+                    if (current[slot] == null || now - deadlines[slot] >= 0) {
+                        Packet<T> packet = scheduler.poll();
+                        if (packet == null || isAdvertisedInOtherSlot(current, packet, slot)) {
+                            if (current[slot] != null) {
+                                advertiser.stop(slot);
+                                current[slot] = null;
+                            }
+                            continue;
+                        }
+                        advertiser.advertise(slot, packet.data);
+                        current[slot] = packet;
+                        deadlines[slot] = now + packet.dwellNanos;
+                    }
+                    next = Math.min(next, deadlines[slot] - now);
+                }
+                if (!available) {
+                    return;
+                }
+                if (next == Long.MAX_VALUE) {
+                    scheduler.await();
+                } else {
+                    TimeUnit.NANOSECONDS.sleep(next);
+                }
+            }
+        } finally {
+            advertiser.close();
+        }
+    }
+
+    private static boolean isAdvertisedInOtherSlot(Object[] current, Object packet, int slot) {
+        for (int i = 0; i < current.length; i++) {
+            if (i != slot && current[i] == packet) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Packet<T> {
+        final T data;
+        final long dwellNanos;
+
+        Packet(T data, long dwellNanos) {
+            this.data = data;
+            this.dwellNanos = dwellNanos;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.otech.bluetoothutils.ble;
 import android.app.Activity;
 import android.app.Application;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
@@ -14,12 +13,26 @@ import android.support.annotation.RequiresApi;
 import android.util.Log;
 
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a wrapper class that provides a way to perform Bluetooth LE advertise operations, such as starting and
- * stopping advertising. This wrapper can broadcast unlimited bytes of advertisement data in packets 31 bytes at a time
+ * stopping advertising. This wrapper can broadcast messages of up to 4096 packets of 31 bytes each.
+ * The message is split at byte boundaries so every packet is filled to the legacy advertisement size.
+ * <p>
+ * The packets carry the message in their service data and leave the service UUID list out by
+ * default, to make room for the message. Scanners of earlier versions filter on the service UUID
+ * list and do not find these packets unless
+ * {@link AdvertiseOptions#setIncludeServiceUuid(boolean)} is enabled.
  * <p>
  * To get an instance of {@link BluetoothLeAdvertiser}, call the
  * {@link BluetoothAdapter#getBluetoothLeAdvertiser()} method.
@@ -32,22 +45,37 @@ import java.nio.charset.Charset;
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class BleAdvertiseManager {
 
+    static final int LEGACY_ADVERTISE_LENGTH = 31;
+    // The advertising data that fits in one extended advertising packet without chaining
+    static final int MAX_EXTENDED_ADVERTISE_LENGTH = 245;
+    // The length and type bytes of an advertising data structure
+    private static final int AD_STRUCTURE_OVERHEAD = 2;
+    private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    private static final String DEFAULT_MESSAGE_ID = "";
+
     private final String TAG = "BleAdvertiseManager";
     private final ParcelUuid serviceDataUUID;
     private final BluetoothLeAdvertiser advertiser;
-    private final AdvertiseSettings settings;
     private final AdvertiseResultInterface advertiseResultInterface;
     private final Activity activity;
+    private AdvertiseOptions options;
+    private BleAdvertiseLoop<?> loop;
     private Thread thread;
-    private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+    // The messages advertised in update mode by ID
+    private final Map<String, BlePackets.Stream> streams = new HashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong packetsAdvertised = new AtomicLong();
+    private volatile long advertiseStartNanos;
+    private final BleAdvertiser.Listener advertiserListener = new BleAdvertiser.Listener() {
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            super.onStartSuccess(settingsInEffect);
+        public void onAdvertised() {
+            packetsAdvertised.incrementAndGet();
         }
 
         @Override
-        public void onStartFailure(int errorCode) {
-            super.onStartFailure(errorCode);
+        public void onFailure(int errorCode) {
             stopAdvertising();
             if (advertiseResultInterface != null) {
                 advertiseResultInterface.onAdvertiseStartFailure(getErrorMessage(errorCode));
@@ -66,19 +94,28 @@ public class BleAdvertiseManager {
      * @throws Exception Will throw exception if Bluetooth is turned off or if Bluetooth LE Advertising is not supported on this device.
      */
     public BleAdvertiseManager(Activity activity, ParcelUuid serviceDataUUID, AdvertiseResultInterface advertiseResultInterface) throws Exception {
+        this(activity, serviceDataUUID, advertiseResultInterface, new AdvertiseOptions());
+    }
+
+    /**
+     * Constructs a {@link BleAdvertiseManager} object for Bluetooth LE Advertising operations.
+     *
+     * @param activity                 Used to track activity life cycle.
+     * @param serviceDataUUID          To use as a filter.
+     * @param advertiseResultInterface Bluetooth LE advertise callbacks. Advertise results are reported using this callback.
+     * @param options                  How long each packet is advertised and with which settings.
+     * @throws Exception Will throw exception if Bluetooth is turned off or if Bluetooth LE Advertising is not supported on this device.
+     */
+    public BleAdvertiseManager(Activity activity, ParcelUuid serviceDataUUID, AdvertiseResultInterface advertiseResultInterface,
+                               AdvertiseOptions options) throws Exception {
         this.activity = activity;
         this.serviceDataUUID = serviceDataUUID;
         this.advertiseResultInterface = advertiseResultInterface;
+        this.options = options;
         this.advertiser = BluetoothAdapter.getDefaultAdapter().getBluetoothLeAdvertiser();
         if (advertiser == null) {
             throw new Exception("Bluetooth not enabled or not supported. Try again after you enable the BT.");
         }
-        this.settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
-                .setTimeout(1000)
-                .setConnectable(false)
-                .build();
 
         this.activity.getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
             @Override
@@ -118,54 +155,223 @@ public class BleAdvertiseManager {
      * Starts advertising the given message
      *
      * @param message used ad advertiseData
+     * @throws IllegalArgumentException If the message needs more than 4096 packets
      */
     public void startAdvertising(String message) {
+        startAdvertising(message.getBytes(Charset.forName("UTF-8")), message.hashCode());
+    }
+
+    /**
+     * Starts advertising the given binary message. Scanners receive it with
+     * {@link BleScanManager.BinaryScanResultInterface#onScanComplete(byte[], int)}.
+     *
+     * @param message used ad advertiseData
+     * @throws IllegalArgumentException If the message needs more than 4096 packets
+     */
+    public void startAdvertising(byte[] message) {
+        startAdvertising(message, Arrays.hashCode(message));
+    }
+
+    private void startAdvertising(byte[] message, int hashCode) {
 
         stopAdvertising();
+        putMessage(DEFAULT_MESSAGE_ID, message, hashCode, 1);
+    }
 
-        final String[] split = split(message, 8);
-        final byte[] hash = ByteBuffer.allocate(4).putInt(message.hashCode()).array();
+    /**
+     * Adds a message to the messages advertised at the same time, or replaces the message with the
+     * same ID. The packets of all the messages are interleaved, each message getting a share of
+     * the packets proportional to its priority, and the other messages keep advertising.
+     * {@link #startAdvertising(String)} replaces all the messages with its own.
+     *
+     * @param id       Identifies the message for {@link #removeMessage(String)}
+     * @param message  used ad advertiseData
+     * @param priority The share of the packets of this message, at least 1
+     * @throws IllegalArgumentException If the message needs more than 4096 packets
+     */
+    public void addMessage(String id, String message, int priority) {
+        putMessage(id, message.getBytes(Charset.forName("UTF-8")), message.hashCode(), priority);
+    }
 
-        thread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    while (!Thread.currentThread().isInterrupted()) {
-                        for (byte i = 0; i < split.length; i++) {
-
-                            byte[] headerBytes = {(byte) split.length, i, hash[0], hash[1], hash[2], hash[3]};
-                            byte[] dataBytes = split[i].getBytes(Charset.forName("UTF-8"));
-                            byte[] total = new byte[headerBytes.length + dataBytes.length];
-                            System.arraycopy(headerBytes, 0, total, 0, headerBytes.length);
-                            System.arraycopy(dataBytes, 0, total, headerBytes.length, dataBytes.length);
-                            final AdvertiseData data = new AdvertiseData.Builder()
-                                    .addServiceUuid(serviceDataUUID)
-                                    .addServiceData(serviceDataUUID, total)
-                                    .build();
-                            Log.d(TAG, "Advertising packet " + i + " of " + split.length);
-                            advertiser.startAdvertising(settings, data, advertiseCallback);
-                            Thread.sleep(500);
-                            advertiser.stopAdvertising(advertiseCallback);
-                        }
+    /**
+     * Adds a binary message to the messages advertised at the same time, or replaces the message
+     * with the same ID.
+     *
+     * @see #addMessage(String, String, int)
+     */
+    public void addMessage(String id, byte[] message, int priority) {
+        putMessage(id, message, Arrays.hashCode(message), priority);
+    }
+
+    /**
+     * Adds a message in update mode, or advertises a new version of the message with the same ID.
+     * Every version is compared with the previous one in packet sized chunks, and the chunks that
+     * changed are advertised twice as often as the others. Scanners holding the previous versions
+     * keep the chunks that did not change and only wait for the others, so small changes to a
+     * long message reach them much faster than with {@link #addMessage(String, String, int)}.
+     * <p>
+     * Messages in update mode are never compressed, compression would change every chunk.
+     *
+     * @param id       Identifies the message for {@link #removeMessage(String)}
+     * @param message  used ad advertiseData
+     * @param priority The share of the packets of this message, at least 1
+     * @throws IllegalArgumentException If the message needs more than 4096 packets
+     */
+    public void updateMessage(String id, String message, int priority) {
+        updateMessage(id, message.getBytes(Charset.forName("UTF-8")), priority);
+    }
+
+    /**
+     * Adds a binary message in update mode, or advertises a new version of the message with the
+     * same ID.
+     *
+     * @see #updateMessage(String, String, int)
+     */
+    public synchronized void updateMessage(String id, byte[] message, int priority) {
+        boolean running = isRunning();
+        if (!running) {
+            loop = createLoop();
+        }
+        BlePackets.Stream stream = streams.get(id);
+        if (stream == null) {
+            stream = new BlePackets.Stream(random.nextInt());
+        }
+        byte[][] serviceData = stream.update(message, loop.getAdvertiser().getMaxServiceDataLength(),
+                options.getParityGroupSize());
+        streams.put(id, stream);
+        putPackets(id, serviceData, priority, running);
+    }
+
+    /**
+     * Stops advertising the message with the given ID, the other messages keep advertising.
+     */
+    public synchronized void removeMessage(String id) {
+        streams.remove(id);
+        if (loop != null) {
+            loop.remove(id);
+        }
+    }
+
+    /**
+     * Return the IDs of the messages being advertised.
+     */
+    public synchronized List<String> getMessageIds() {
+        return loop != null ? loop.getIds() : Collections.<String>emptyList();
+    }
+
+    private synchronized void putMessage(String id, byte[] message, int hashCode, int priority) {
+        boolean running = isRunning();
+        if (!running) {
+            loop = createLoop();
+        }
+        streams.remove(id);
+        int flags = 0;
+        if (options.isCompression()) {
+            byte[] compressed = BleCompression.compress(message, options.getCompressionDictionary());
+            // Short or random messages may not shrink
+            if (compressed.length < message.length) {
+                message = compressed;
+                flags |= BlePackets.FLAG_COMPRESSED;
+            }
+        }
+        byte[][] serviceData = BlePackets.encode(message, hashCode, loop.getAdvertiser().getMaxServiceDataLength(),
+                options.getParityGroupSize(), flags);
+        putPackets(id, serviceData, priority, running);
+    }
+
+    private boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    private void putPackets(String id, byte[][] serviceData, int priority, boolean running) {
+        loop.put(id, serviceData, priority, options.getDwellMillis(serviceData.length));
+
+        if (!running) {
+            packetsAdvertised.set(0);
+            advertiseStartNanos = System.nanoTime();
+            final BleAdvertiseLoop<?> started = loop;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        started.run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
-                } catch (InterruptedException e) {
-                    advertiser.stopAdvertising(advertiseCallback);
-                    Thread.currentThread().interrupt();
                 }
+            });
+            thread.start();
+        }
+    }
+
+    /**
+     * Return a loop advertising with several advertising sets or extended advertising when the
+     * options ask for it and the device supports it, and with the legacy advertiser otherwise.
+     */
+    private BleAdvertiseLoop<?> createLoop() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && (options.getAdvertisingSets() > 1 || options.isExtendedAdvertising())) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            boolean extended = options.isExtendedAdvertising() && adapter.isLeExtendedAdvertisingSupported();
+            if (extended || adapter.isMultipleAdvertisementSupported()) {
+                return new BleAdvertiseLoop<>(new BleAdvertisingSetAdvertiser(advertiser, serviceDataUUID, options,
+                        extended, adapter.getLeMaximumAdvertisingDataLength(), advertiserListener));
             }
-        });
-        thread.start();
+        }
+        if (options.getAdvertisingSets() > 1 || options.isExtendedAdvertising()) {
+            Log.w(TAG, "Advertising sets not supported, falling back to legacy advertising");
+        }
+        return new BleAdvertiseLoop<>(new BleLegacyAdvertiser(advertiser, serviceDataUUID, options, advertiserListener));
+    }
+
+    /**
+     * Changes how the packets are advertised. Takes effect for the messages added afterwards, the
+     * number of advertising sets and extended advertising the next time advertising starts.
+     */
+    public synchronized void setAdvertiseOptions(AdvertiseOptions options) {
+        this.options = options;
+    }
+
+    public synchronized AdvertiseOptions getAdvertiseOptions() {
+        return options;
+    }
+
+    /**
+     * Return the number of packets the controller actually started advertising per second since
+     * advertising started. This is lower than 1000 / dwell time when the controller
+     * is slow to restart advertising or rejects packets.
+     */
+    public double getEffectivePacketsPerSecond() {
+        long elapsedNanos = System.nanoTime() - advertiseStartNanos;
+        if (advertiseStartNanos == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return packetsAdvertised.get() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * Return the number of packets the controller started advertising since advertising started.
+     */
+    public long getPacketsAdvertised() {
+        return packetsAdvertised.get();
     }
 
     /**
-     * Stops advertising
+     * Stops advertising all the messages
      */
-    public void stopAdvertising() {
-        if (thread != null)
+    public synchronized void stopAdvertising() {
+        if (thread != null) {
             thread.interrupt();
+            thread = null;
+        }
+        if (loop != null) {
+            loop.clear();
+            loop.getAdvertiser().close();
+            loop = null;
+        }
+        streams.clear();
 
         if (advertiser != null) {
-            advertiser.stopAdvertising(advertiseCallback);
             try {
                 Method method = advertiser.getClass().getMethod("cleanup");
                 method.invoke(advertiser);
@@ -175,11 +381,38 @@ public class BleAdvertiseManager {
         }
     }
 
-    private String[] split(String src, int len) {
-        String[] result = new String[(int) Math.ceil((double) src.length() / (double) len)];
-        for (int i = 0; i < result.length; i++)
-            result[i] = src.substring(i * len, Math.min(src.length(), (i + 1) * len));
-        return result;
+    /**
+     * Return the number of service data bytes that fit in one packet, header included. A legacy
+     * advertisement holds 31 bytes, non-connectable advertisements carry no flags, and the service
+     * data takes 2 bytes plus the length of the UUID in its shortest form.
+     *
+     * @param serviceDataUUID    The UUID of the service data
+     * @param includeServiceUuid Whether the UUID is also advertised in the service UUID list
+     * @param advertiseLength    The length of the advertising data
+     */
+    static int getMaxServiceDataLength(UUID serviceDataUUID, boolean includeServiceUuid, int advertiseLength) {
+        int uuidLength = getUuidLength(serviceDataUUID);
+        int available = advertiseLength - AD_STRUCTURE_OVERHEAD - uuidLength;
+        if (includeServiceUuid) {
+            available -= AD_STRUCTURE_OVERHEAD + uuidLength;
+        }
+        if (available <= BlePackets.VERSIONED_HEADER_LENGTH + BlePackets.PARITY_OVERHEAD) {
+            throw new IllegalArgumentException("No room for data next to " + serviceDataUUID
+                    + ", use a 16 bit UUID or do not include the service UUID");
+        }
+        return available;
+    }
+
+    /**
+     * Return the number of bytes the UUID takes in advertising data, 2 or 4 if it is an alias of
+     * the Bluetooth base UUID and 16 otherwise.
+     */
+    static int getUuidLength(UUID uuid) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LEAST_SIGNIFICANT_BITS
+                || (uuid.getMostSignificantBits() & 0xFFFFFFFFL) != BASE_UUID_MOST_SIGNIFICANT_BITS) {
+            return 16;
+        }
+        return (uuid.getMostSignificantBits() >>> 48) == 0 ? 2 : 4;
     }
 
     private String getErrorMessage(int errorCode) {
@@ -204,5 +437,217 @@ public class BleAdvertiseManager {
         void onAdvertiseStartFailure(String message);
     }
 
+    /**
+     * How long each packet of a message is advertised before moving to the next one, and the
+     * settings it is advertised with.
+     * <p>
+     * A scanner needs to catch a packet at least once before it is replaced, so the dwell time
+     * should span a few advertising intervals: about 100 ms in low latency mode, 250 ms in
+     * balanced mode and 1 s in low power mode. In adaptive mode, messages of fewer than
+     * {@link #ADAPTIVE_CHUNKS} packets are advertised with a proportionally shorter dwell time,
+     * but never less than the minimum, because a scanner that misses a packet of a short message
+     * gets it again soon anyway.
+     */
+    public static class AdvertiseOptions {
+        public static final int ADAPTIVE_CHUNKS = 8;
+        // AdvertiseSettings rejects longer timeouts
+        private static final int MAX_TIMEOUT_MILLIS = 180000;
+
+        private long dwellMillis = 500;
+        private long minDwellMillis = 100;
+        private boolean adaptive;
+        private boolean includeServiceUuid;
+        private int parityGroupSize;
+        private int advertisingSets = 1;
+        private boolean extendedAdvertising;
+        private boolean compression;
+        private byte[] compressionDictionary = BleCompression.DEFAULT_DICTIONARY;
+        private int advertiseMode = AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+        private int txPowerLevel = AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+
+        /**
+         * @param dwellMillis How long each packet is advertised, 500 ms by default
+         */
+        public AdvertiseOptions setDwellMillis(long dwellMillis) {
+            if (dwellMillis <= 0) {
+                throw new IllegalArgumentException("Invalid dwell time " + dwellMillis);
+            }
+            this.dwellMillis = dwellMillis;
+            return this;
+        }
+
+        /**
+         * @param minDwellMillis The shortest dwell time of the adaptive mode, 100 ms by default
+         */
+        public AdvertiseOptions setMinDwellMillis(long minDwellMillis) {
+            if (minDwellMillis <= 0) {
+                throw new IllegalArgumentException("Invalid dwell time " + minDwellMillis);
+            }
+            this.minDwellMillis = minDwellMillis;
+            return this;
+        }
+
+        public AdvertiseOptions setAdaptive(boolean adaptive) {
+            this.adaptive = adaptive;
+            return this;
+        }
+
+        /**
+         * Whether the UUID is also advertised in the service UUID list, which takes room from the
+         * message in every packet. Scanners of this version find the packets by their service
+         * data, so this is only needed by scanners filtering on the service UUID. Off by default.
+         */
+        public AdvertiseOptions setIncludeServiceUuid(boolean includeServiceUuid) {
+            this.includeServiceUuid = includeServiceUuid;
+            return this;
+        }
+
+        /**
+         * Mixes a parity packet into the rotation after every group of the given number of data
+         * packets. A scanner that missed one packet of a group rebuilds it from the parity packet
+         * instead of waiting for the next rotation. Smaller groups recover more losses and cost
+         * more airtime. Scanners older than parity packets do not understand them.
+         *
+         * @param parityGroupSize The number of data packets per parity packet, 0 for none, the default
+         */
+        public AdvertiseOptions setParityGroupSize(int parityGroupSize) {
+            if (parityGroupSize < 0 || parityGroupSize > BlePackets.MAX_PARITY_GROUP_SIZE) {
+                throw new IllegalArgumentException("Invalid parity group size " + parityGroupSize);
+            }
+            this.parityGroupSize = parityGroupSize;
+            return this;
+        }
+
+        /**
+         * Advertises the given number of packets at the same time with as many advertising sets,
+         * which goes through the messages that many times faster. Needs Android 8.0 and a
+         * controller supporting multiple advertisements, falls back to one packet at a time
+         * otherwise. The controller may support fewer sets, the sets it refuses are left out.
+         *
+         * @param advertisingSets The number of packets advertised at the same time, 1 by default
+         */
+        public AdvertiseOptions setAdvertisingSets(int advertisingSets) {
+            if (advertisingSets < 1) {
+                throw new IllegalArgumentException("Invalid number of advertising sets " + advertisingSets);
+            }
+            this.advertisingSets = advertisingSets;
+            return this;
+        }
+
+        /**
+         * Uses extended advertising, whose packets hold up to 245 bytes instead of 31. Needs
+         * Android 8.0 and a controller supporting extended advertising, falls back to legacy
+         * advertising otherwise. Scanners only see extended advertisements if their controller
+         * supports them too. Off by default.
+         */
+        public AdvertiseOptions setExtendedAdvertising(boolean extendedAdvertising) {
+            this.extendedAdvertising = extendedAdvertising;
+            return this;
+        }
+
+        /**
+         * Compresses the messages before splitting them into packets, which takes fewer packets
+         * for text. A message that does not shrink is sent as is. Scanners of this version
+         * decompress the messages with the same dictionary, older scanners do not understand
+         * compressed messages. Off by default.
+         */
+        public AdvertiseOptions setCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets the preset dictionary of the compression, which scanners must also use. A good
+         * dictionary holds the strings most messages contain, the most common last. The default
+         * dictionary holds common English words and JSON fragments.
+         *
+         * @see BleScanManager#setCompressionDictionary(byte[])
+         */
+        public AdvertiseOptions setCompressionDictionary(byte[] compressionDictionary) {
+            this.compressionDictionary = compressionDictionary;
+            return this;
+        }
+
+        /**
+         * @param advertiseMode One of the AdvertiseSettings.ADVERTISE_MODE_* constants
+         */
+        public AdvertiseOptions setAdvertiseMode(int advertiseMode) {
+            this.advertiseMode = advertiseMode;
+            return this;
+        }
+
+        /**
+         * @param txPowerLevel One of the AdvertiseSettings.ADVERTISE_TX_POWER_* constants
+         */
+        public AdvertiseOptions setTxPowerLevel(int txPowerLevel) {
+            this.txPowerLevel = txPowerLevel;
+            return this;
+        }
+
+        public long getDwellMillis() {
+            return dwellMillis;
+        }
+
+        public long getMinDwellMillis() {
+            return minDwellMillis;
+        }
+
+        public boolean isAdaptive() {
+            return adaptive;
+        }
+
+        public boolean isIncludeServiceUuid() {
+            return includeServiceUuid;
+        }
+
+        public int getParityGroupSize() {
+            return parityGroupSize;
+        }
+
+        public int getAdvertisingSets() {
+            return advertisingSets;
+        }
+
+        public boolean isExtendedAdvertising() {
+            return extendedAdvertising;
+        }
+
+        public boolean isCompression() {
+            return compression;
+        }
+
+        public byte[] getCompressionDictionary() {
+            return compressionDictionary;
+        }
+
+        public int getAdvertiseMode() {
+            return advertiseMode;
+        }
+
+        public int getTxPowerLevel() {
+            return txPowerLevel;
+        }
+
+        /**
+         * Return the dwell time of each packet of a message made of the given number of packets.
+         */
+        public long getDwellMillis(int chunks) {
+            if (!adaptive || chunks >= ADAPTIVE_CHUNKS) {
+                return dwellMillis;
+            }
+            return Math.min(dwellMillis, Math.max(minDwellMillis, dwellMillis * chunks / ADAPTIVE_CHUNKS));
+        }
+
+        AdvertiseSettings buildSettings(long dwellMillis) {
+            // The timeout only matters if the thread dies before stopping the packet
+            return new AdvertiseSettings.Builder()
+                    .setAdvertiseMode(advertiseMode)
+                    .setTxPowerLevel(txPowerLevel)
+                    .setTimeout((int) Math.min(MAX_TIMEOUT_MILLIS, dwellMillis * 2))
+                    .setConnectable(false)
+                    .build();
+        }
+    }
+
 
 }
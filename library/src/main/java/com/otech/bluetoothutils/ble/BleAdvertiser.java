@@ -0,0 +1,66 @@
+package com.otech.bluetoothutils.ble;
+
+/**
+ * Puts packets on the air for {@link BleAdvertiseLoop}. An advertiser has one or more slots, each
+ * advertising one packet at a time, so the loop can be driven by the platform advertiser or by a
+ * stand-in in tests.
+ *
+ * @param <T> The packets, built once by {@link #prepare(byte[], long)}
+ */
+interface BleAdvertiser<T> {
+
+    /**
+     * Return the number of packets advertised at the same time.
+     */
+    int getSlotCount();
+
+    /**
+     * Return false if the slot failed and cannot advertise anymore.
+     */
+    boolean isAvailable(int slot);
+
+    /**
+     * Return the number of service data bytes that fit in one packet, header included.
+     */
+    int getMaxServiceDataLength();
+
+    /**
+     * Builds the packet advertising the given service data.
+     *
+     * @param serviceData The service data, header included
+     * @param dwellMillis How long the packet stays in its slot
+     */
+    T prepare(byte[] serviceData, long dwellMillis);
+
+    /**
+     * Replaces the packet advertised in the slot.
+     */
+    void advertise(int slot, T packet);
+
+    /**
+     * Stops advertising in the slot until the next packet.
+     */
+    void stop(int slot);
+
+    /**
+     * Stops advertising in all the slots and releases them.
+     */
+    void close();
+
+    /**
+     * Receives the results of an advertiser, on any thread.
+     */
+    interface Listener {
+        /**
+         * Called every time the controller starts advertising a packet.
+         */
+        void onAdvertised();
+
+        /**
+         * Called when the advertiser cannot advertise anymore.
+         *
+         * @param errorCode One of the AdvertiseCallback.ADVERTISE_FAILED_* constants
+         */
+        void onFailure(int errorCode);
+    }
+}
@@ -0,0 +1,219 @@
+package com.otech.bluetoothutils.ble;
+
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+/**
+ * Advertises several packets at the same time with one advertising set per slot. The data of a
+ * running set is replaced without stopping it. The sets use extended advertising, with room for
+ * much larger packets, when the controller supports it and the options ask for it, and legacy
+ * advertising otherwise.
+ * <p>
+ * A set the controller refuses to start, usually because it has no more advertising sets, makes
+ * its slot unavailable and the other slots carry on.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+final class BleAdvertisingSetAdvertiser implements BleAdvertiser<AdvertiseData> {
+
+    private static final String TAG = "BleAdvertisingSets";
+
+    private final BluetoothLeAdvertiser advertiser;
+    private final ParcelUuid serviceDataUUID;
+    private final BleAdvertiseManager.AdvertiseOptions options;
+    private final Listener listener;
+    private final AdvertisingSetParameters parameters;
+    private final int maxAdvertiseLength;
+    private final Slot[] slots;
+
+    /**
+     * @param maxAdvertiseLength The advertising data length supported by the controller, only used
+     *                           with extended advertising
+     */
+    BleAdvertisingSetAdvertiser(BluetoothLeAdvertiser advertiser, ParcelUuid serviceDataUUID,
+                                BleAdvertiseManager.AdvertiseOptions options, boolean extended,
+                                int maxAdvertiseLength, Listener listener) {
+        this.advertiser = advertiser;
+        this.serviceDataUUID = serviceDataUUID;
+        this.options = options;
+        this.listener = listener;
+        this.maxAdvertiseLength = extended
+                ? Math.min(maxAdvertiseLength, BleAdvertiseManager.MAX_EXTENDED_ADVERTISE_LENGTH)
+                : BleAdvertiseManager.LEGACY_ADVERTISE_LENGTH;
+        this.parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(!extended)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(getInterval(options.getAdvertiseMode()))
+                .setTxPowerLevel(getTxPowerLevel(options.getTxPowerLevel()))
+                .build();
+        this.slots = new Slot[options.getAdvertisingSets()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    private static int getInterval(int advertiseMode) {
+        switch (advertiseMode) {
+            case AdvertiseSettings.ADVERTISE_MODE_LOW_POWER:
+                return AdvertisingSetParameters.INTERVAL_HIGH;
+            case AdvertiseSettings.ADVERTISE_MODE_BALANCED:
+                return AdvertisingSetParameters.INTERVAL_MEDIUM;
+            default:
+                return AdvertisingSetParameters.INTERVAL_LOW;
+        }
+    }
+
+    private static int getTxPowerLevel(int txPowerLevel) {
+        switch (txPowerLevel) {
+            case AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW:
+                return AdvertisingSetParameters.TX_POWER_ULTRA_LOW;
+            case AdvertiseSettings.ADVERTISE_TX_POWER_LOW:
+                return AdvertisingSetParameters.TX_POWER_LOW;
+            case AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM:
+                return AdvertisingSetParameters.TX_POWER_MEDIUM;
+            default:
+                return AdvertisingSetParameters.TX_POWER_HIGH;
+        }
+    }
+
+    @Override
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    @Override
+    public boolean isAvailable(int slot) {
+        return !slots[slot].failed;
+    }
+
+    @Override
+    public int getMaxServiceDataLength() {
+        return BleAdvertiseManager.getMaxServiceDataLength(serviceDataUUID.getUuid(), options.isIncludeServiceUuid(),
+                maxAdvertiseLength);
+    }
+
+    @Override
+    public AdvertiseData prepare(byte[] serviceData, long dwellMillis) {
+        AdvertiseData.Builder builder = new AdvertiseData.Builder();
+        if (options.isIncludeServiceUuid()) {
+            builder.addServiceUuid(serviceDataUUID);
+        }
+        return builder.addServiceData(serviceDataUUID, serviceData).build();
+    }
+
+    @Override
+    public void advertise(int slot, AdvertiseData packet) {
+        slots[slot].advertise(packet);
+    }
+
+    @Override
+    public void stop(int slot) {
+        slots[slot].stop();
+    }
+
+    @Override
+    public void close() {
+        for (Slot slot : slots) {
+            slot.close();
+        }
+    }
+
+    /**
+     * The advertising set of one slot. The set is started with the first packet of the slot, and
+     * the last packet given while it starts is advertised once it is started.
+     */
+    private class Slot extends AdvertisingSetCallback {
+        private final int index;
+        private AdvertisingSet set;
+        private AdvertiseData pending;
+        private boolean started;
+        private boolean wanted;
+        private boolean enabled;
+        private boolean closed;
+        volatile boolean failed;
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        synchronized void advertise(AdvertiseData packet) {
+            if (closed) {
+                return;
+            }
+            wanted = true;
+            if (!started) {
+                started = true;
+                advertiser.startAdvertisingSet(parameters, packet, null, null, null, this);
+            } else if (set == null) {
+                pending = packet;
+            } else {
+                set.setAdvertisingData(packet);
+                if (!enabled) {
+                    enabled = true;
+                    set.enableAdvertising(true, 0, 0);
+                }
+            }
+        }
+
+        synchronized void stop() {
+            wanted = false;
+            pending = null;
+            if (set != null && enabled) {
+                enabled = false;
+                set.enableAdvertising(false, 0, 0);
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (started) {
+                advertiser.stopAdvertisingSet(this);
+            }
+        }
+
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                Log.w(TAG, "Advertising set " + index + " failed to start with status " + status);
+                failed = true;
+                for (Slot slot : slots) {
+                    if (!slot.failed) {
+                        return;
+                    }
+                }
+                listener.onFailure(status);
+                return;
+            }
+            listener.onAdvertised();
+            synchronized (this) {
+                set = advertisingSet;
+                enabled = true;
+                if (closed) {
+                    return;
+                }
+                if (!wanted) {
+                    enabled = false;
+                    set.enableAdvertising(false, 0, 0);
+                } else if (pending != null) {
+                    set.setAdvertisingData(pending);
+                }
+                pending = null;
+            }
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            if (status == ADVERTISE_SUCCESS) {
+                listener.onAdvertised();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.otech.bluetoothutils.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages before they are split into packets, with raw deflate and a preset
+ * dictionary. Raw deflate leaves out the 6 bytes of zlib framing, which matter more than anything
+ * for short messages, and the dictionary lets even a message of a few dozen bytes refer to common
+ * strings instead of spelling them out. Both sides must use the same dictionary.
+ */
+final class BleCompression {
+
+    /**
+     * The default dictionary, made of strings common in short text and JSON messages. Deflate
+     * finds the strings at the end of the dictionary with the shortest distances, so the most
+     * common come last.
+     */
+    static final byte[] DEFAULT_DICTIONARY = ("https://www.http://.com/api/v1/ error warning info debug "
+            + "latitude longitude altitude speed heading accuracy pressure humidity temperature voltage current "
+            + "battery signal level count total version config update alert status state mode name type value "
+            + "message timestamp time date device sensor id ok on off true false null 0.0 1.0 00 01 10 "
+            + "\",\"name\":\"\",\"type\":\"\",\"value\":\",\"status\":\"\",\"id\":\"\":\"\",\"\":true,\"\":false,\"\":null,\"\":{\"\":[\"}]}\"}")
+            .getBytes(Charset.forName("UTF-8"));
+
+    // Refuses to inflate anything larger than the largest message packets can carry
+    static final int MAX_DECOMPRESSED_LENGTH = 1024 * 1024;
+
+    private BleCompression() {
+    }
+
+    /**
+     * Return the message compressed with the dictionary.
+     */
+    static byte[] compress(byte[] message, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(message);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(message.length / 2 + 16);
+            byte[] buffer = new byte[256];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Return the message decompressed with the dictionary.
+     *
+     * @throws DataFormatException If the data is corrupt, was compressed with another dictionary
+     *                             or decompresses to more than {@link #MAX_DECOMPRESSED_LENGTH}
+     */
+    static byte[] decompress(byte[] data, byte[] dictionary) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[256];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed message");
+                }
+                if (out.size() + length > MAX_DECOMPRESSED_LENGTH) {
+                    throw new DataFormatException("Compressed message larger than " + MAX_DECOMPRESSED_LENGTH + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.otech.bluetoothutils.ble;
+
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.support.annotation.RequiresApi;
+
+/**
+ * Advertises one legacy packet at a time with {@link BluetoothLeAdvertiser#startAdvertising}.
+ * The data of a running advertisement cannot be changed, so every packet stops and restarts
+ * advertising.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+final class BleLegacyAdvertiser implements BleAdvertiser<BleLegacyAdvertiser.Packet> {
+
+    private final BluetoothLeAdvertiser advertiser;
+    private final ParcelUuid serviceDataUUID;
+    private final BleAdvertiseManager.AdvertiseOptions options;
+    private final Listener listener;
+    private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            super.onStartSuccess(settingsInEffect);
+            listener.onAdvertised();
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            super.onStartFailure(errorCode);
+            listener.onFailure(errorCode);
+        }
+    };
+
+    BleLegacyAdvertiser(BluetoothLeAdvertiser advertiser, ParcelUuid serviceDataUUID,
+                        BleAdvertiseManager.AdvertiseOptions options, Listener listener) {
+        this.advertiser = advertiser;
+        this.serviceDataUUID = serviceDataUUID;
+        this.options = options;
+        this.listener = listener;
+    }
+
+    @Override
+    public int getSlotCount() {
+        return 1;
+    }
+
+    @Override
+    public boolean isAvailable(int slot) {
+        return true;
+    }
+
+    @Override
+    public int getMaxServiceDataLength() {
+        return BleAdvertiseManager.getMaxServiceDataLength(serviceDataUUID.getUuid(), options.isIncludeServiceUuid(),
+                BleAdvertiseManager.LEGACY_ADVERTISE_LENGTH);
+    }
+
+    @Override
+    public Packet prepare(byte[] serviceData, long dwellMillis) {
+        AdvertiseData.Builder builder = new AdvertiseData.Builder();
+        if (options.isIncludeServiceUuid()) {
+            builder.addServiceUuid(serviceDataUUID);
+        }
+        return new Packet(builder.addServiceData(serviceDataUUID, serviceData).build(), options.buildSettings(dwellMillis));
+    }
+
+    @Override
+    public void advertise(int slot, Packet packet) {
+        advertiser.stopAdvertising(advertiseCallback);
+        advertiser.startAdvertising(packet.settings, packet.data, advertiseCallback);
+    }
+
+    @Override
+    public void stop(int slot) {
+        advertiser.stopAdvertising(advertiseCallback);
+    }
+
+    @Override
+    public void close() {
+        advertiser.stopAdvertising(advertiseCallback);
+    }
+
+    static final class Packet {
+        final AdvertiseData data;
+        final AdvertiseSettings settings;
+
+        Packet(AdvertiseData data, AdvertiseSettings settings) {
+            this.data = data;
+            this.settings = settings;
+        }
+    }
+}
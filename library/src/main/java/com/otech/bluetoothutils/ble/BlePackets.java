@@ -0,0 +1,607 @@
+package com.otech.bluetoothutils.ble;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits messages into the service data of advertising packets and reassembles them.
+ * <p>
+ * Messages of up to 127 packets use the legacy 6 byte header
+ * <pre>
+ * [count 1 byte][index 1 byte][hash 4 bytes]
+ * </pre>
+ * where count is the number of data packets of the message and hash identifies the message. Data
+ * packets have an index below count and carry the next bytes of the message. Larger messages use
+ * the 8 byte versioned header
+ * <pre>
+ * [1 version 3 bits, flags 4 bits][count - 1 12 bits, index 12 bits][hash 4 bytes]
+ * </pre>
+ * which holds up to 4096 packets. A legacy count is never negative, so the high bit of the first
+ * byte tells the formats apart. Scanners ignore versions they do not know. Messages with flags,
+ * such as compressed messages, always use the versioned header.
+ * <p>
+ * When forward error correction is enabled, a parity packet follows every group of data packets.
+ * In the legacy header its index is count plus the number of the group, in the versioned header it
+ * has the parity flag and the number of the group as index. Its body is
+ * <pre>
+ * [group size 1 byte][XOR of the chunk lengths 1 byte][XOR of the chunks]
+ * </pre>
+ * so a scanner that missed one data packet of a group rebuilds it from the others and the parity
+ * packet instead of waiting for the next rotation. Data packets then carry 2 bytes less, so the
+ * parity packets fit in the same advertisement. Scanners older than parity packets do not
+ * understand them.
+ * <p>
+ * A message advertised in update mode is a {@link Stream} of versions. Its packets have the
+ * incremental flag, and their hash field holds a random 16 bit stream ID followed by the 16 bit
+ * version. Manifest packets, with the manifest flag and their number as index, have the body
+ * <pre>
+ * [first chunk 2 bytes][low byte of the version each chunk last changed in, 1 byte per chunk]
+ * </pre>
+ * so a scanner holding chunks of an older version keeps the chunks that did not change since and
+ * only waits for the others.
+ */
+final class BlePackets {
+
+    static final int LEGACY_HEADER_LENGTH = 6;
+    static final int VERSIONED_HEADER_LENGTH = 8;
+    static final int VERSION = 1;
+    static final int PARITY_OVERHEAD = 2;
+    static final int MAX_LEGACY_PACKETS = 127;
+    static final int MAX_PACKETS = 4096;
+    static final int MAX_PARITY_GROUP_SIZE = 127;
+
+    static final int FLAG_PARITY = 0x01;
+    // Set on every packet of a message compressed by BleCompression
+    static final int FLAG_COMPRESSED = 0x02;
+    static final int FLAG_INCREMENTAL = 0x04;
+    static final int FLAG_MANIFEST = 0x08;
+
+    static final int MANIFEST_OVERHEAD = 2;
+    // Versions a scanner can be behind and still patch its chunks, the manifest keeps 8 bits
+    static final int MAX_VERSIONS_BEHIND = 255;
+
+    private static final int VERSIONED = 0x80;
+    private static final int INDEX_BITS = 12;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    private BlePackets() {
+    }
+
+    /**
+     * Return the service data of the packets of a message, in the order they are advertised.
+     *
+     * @param message         The message
+     * @param hashCode        Identifies the message
+     * @param packetLength    The maximum length of the service data of a packet, header included
+     * @param parityGroupSize The number of data packets covered by each parity packet, 0 for none
+     * @throws IllegalArgumentException If the message needs more than {@link #MAX_PACKETS} data
+     *                                  packets
+     */
+    static byte[][] encode(byte[] message, int hashCode, int packetLength, int parityGroupSize) {
+        return encode(message, hashCode, packetLength, parityGroupSize, 0);
+    }
+
+    /**
+     * Return the service data of the packets of a message with the given flags, in the order they
+     * are advertised.
+     *
+     * @param flags The flags of the message, such as {@link #FLAG_COMPRESSED}
+     * @see #encode(byte[], int, int, int)
+     */
+    static byte[][] encode(byte[] message, int hashCode, int packetLength, int parityGroupSize, int flags) {
+        if (parityGroupSize < 0 || parityGroupSize > MAX_PARITY_GROUP_SIZE) {
+            throw new IllegalArgumentException("Invalid parity group size " + parityGroupSize);
+        }
+        boolean versioned = false;
+        int chunkLength = getChunkLength(packetLength, LEGACY_HEADER_LENGTH, parityGroupSize);
+        int count = getCount(message.length, chunkLength);
+        int groups = parityGroupSize > 0 ? (count + parityGroupSize - 1) / parityGroupSize : 0;
+        if (flags != 0 || count + groups > MAX_LEGACY_PACKETS) {
+            versioned = true;
+            chunkLength = getChunkLength(packetLength, VERSIONED_HEADER_LENGTH, parityGroupSize);
+            count = getCount(message.length, chunkLength);
+            groups = parityGroupSize > 0 ? (count + parityGroupSize - 1) / parityGroupSize : 0;
+            if (count > MAX_PACKETS) {
+                throw new IllegalArgumentException("Message of " + message.length + " bytes needs " + count
+                        + " packets of " + chunkLength + " bytes, at most " + MAX_PACKETS + " are supported");
+            }
+        }
+        return build(message, hashCode, versioned, flags, chunkLength, count, groups, parityGroupSize);
+    }
+
+    /**
+     * Return the data packets of a message with a parity packet after every group.
+     */
+    private static byte[][] build(byte[] message, int hashCode, boolean versioned, int flags, int chunkLength,
+                                  int count, int groups, int parityGroupSize) {
+        int headerLength = versioned ? VERSIONED_HEADER_LENGTH : LEGACY_HEADER_LENGTH;
+
+        byte[][] packets = new byte[count + groups][];
+        int next = 0;
+        byte[] parity = null;
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkLength;
+            int length = Math.min(chunkLength, message.length - offset);
+            ByteBuffer packet = ByteBuffer.allocate(headerLength + length);
+            putHeader(packet, versioned, flags, count, i, hashCode);
+            packets[next++] = packet.put(message, offset, length).array();
+
+            if (parityGroupSize == 0) {
+                continue;
+            }
+            int group = i / parityGroupSize;
+            if (parity == null) {
+                parity = new byte[headerLength + PARITY_OVERHEAD + chunkLength];
+                ByteBuffer buffer = ByteBuffer.wrap(parity);
+                if (versioned) {
+                    putHeader(buffer, true, flags | FLAG_PARITY, count, group, hashCode);
+                } else {
+                    putHeader(buffer, false, 0, count, count + group, hashCode);
+                }
+                buffer.put((byte) parityGroupSize);
+            }
+            parity[headerLength + 1] ^= (byte) length;
+            for (int j = 0; j < length; j++) {
+                parity[headerLength + PARITY_OVERHEAD + j] ^= message[offset + j];
+            }
+            if (i % parityGroupSize == parityGroupSize - 1 || i == count - 1) {
+                packets[next++] = parity;
+                parity = null;
+            }
+        }
+        return packets;
+    }
+
+    private static void putHeader(ByteBuffer buffer, boolean versioned, int flags, int count, int index, int hashCode) {
+        if (versioned) {
+            int sequence = (count - 1) << INDEX_BITS | index;
+            buffer.put((byte) (VERSIONED | VERSION << 4 | flags))
+                    .put((byte) (sequence >>> 16))
+                    .putShort((short) sequence);
+        } else {
+            buffer.put((byte) count).put((byte) index);
+        }
+        buffer.putInt(hashCode);
+    }
+
+    private static int getCount(int messageLength, int chunkLength) {
+        // An empty message still takes one packet, so scanners see it
+        return Math.max(1, (messageLength + chunkLength - 1) / chunkLength);
+    }
+
+    /**
+     * Return the number of message bytes carried by each data packet.
+     */
+    static int getChunkLength(int packetLength, int headerLength, int parityGroupSize) {
+        int chunkLength = packetLength - headerLength - (parityGroupSize > 0 ? PARITY_OVERHEAD : 0);
+        if (chunkLength <= 0) {
+            throw new IllegalArgumentException("No room for data in packets of " + packetLength + " bytes");
+        }
+        return chunkLength;
+    }
+
+    /**
+     * The versions of a message advertised in update mode. Every update is compared with the
+     * previous version chunk by chunk, and the rotation of the new version advertises the chunks
+     * that changed and the manifest twice as often as the others. Used by the advertiser only.
+     */
+    static final class Stream {
+        private final int streamId;
+        private int version = -1;
+        private byte[][] chunks = new byte[0][];
+        private int[] lastChanged = new int[0];
+
+        /**
+         * @param streamId Identifies the stream, only the low 16 bits are used
+         */
+        Stream(int streamId) {
+            this.streamId = streamId & 0xFFFF;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        /**
+         * Moves to the next version and returns the service data of its packets, in the order they
+         * are advertised.
+         *
+         * @throws IllegalArgumentException If the message needs more than {@link #MAX_PACKETS}
+         *                                  data packets
+         */
+        byte[][] update(byte[] message, int packetLength, int parityGroupSize) {
+            if (parityGroupSize < 0 || parityGroupSize > MAX_PARITY_GROUP_SIZE) {
+                throw new IllegalArgumentException("Invalid parity group size " + parityGroupSize);
+            }
+            int chunkLength = getChunkLength(packetLength, VERSIONED_HEADER_LENGTH, parityGroupSize);
+            int count = getCount(message.length, chunkLength);
+            if (count > MAX_PACKETS) {
+                throw new IllegalArgumentException("Message of " + message.length + " bytes needs " + count
+                        + " packets of " + chunkLength + " bytes, at most " + MAX_PACKETS + " are supported");
+            }
+            int manifestLength = packetLength - VERSIONED_HEADER_LENGTH - MANIFEST_OVERHEAD;
+            if (manifestLength <= 0) {
+                throw new IllegalArgumentException("No room for a manifest in packets of " + packetLength + " bytes");
+            }
+
+            int next = (version + 1) & 0xFFFF;
+            byte[][] nextChunks = new byte[count][];
+            int[] nextLastChanged = new int[count];
+            int changed = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = i * chunkLength;
+                nextChunks[i] = Arrays.copyOfRange(message, offset, Math.min(message.length, offset + chunkLength));
+                if (version != -1 && i < chunks.length && Arrays.equals(chunks[i], nextChunks[i])) {
+                    // Scanners that far behind start over anyway
+                    int behind = Math.min((next - lastChanged[i]) & 0xFFFF, MAX_VERSIONS_BEHIND);
+                    nextLastChanged[i] = (next - behind) & 0xFFFF;
+                } else {
+                    nextLastChanged[i] = next;
+                    changed++;
+                }
+            }
+            version = next;
+            chunks = nextChunks;
+            lastChanged = nextLastChanged;
+
+            int field = streamId << 16 | version;
+            int groups = parityGroupSize > 0 ? (count + parityGroupSize - 1) / parityGroupSize : 0;
+            byte[][] packets = build(message, field, true, FLAG_INCREMENTAL, chunkLength, count, groups, parityGroupSize);
+
+            int manifests = (count + manifestLength - 1) / manifestLength;
+            byte[][] manifest = new byte[manifests][];
+            for (int k = 0; k < manifests; k++) {
+                int first = k * manifestLength;
+                int length = Math.min(manifestLength, count - first);
+                ByteBuffer buffer = ByteBuffer.allocate(VERSIONED_HEADER_LENGTH + MANIFEST_OVERHEAD + length);
+                putHeader(buffer, true, FLAG_INCREMENTAL | FLAG_MANIFEST, count, k, field);
+                buffer.putShort((short) first);
+                for (int i = first; i < first + length; i++) {
+                    buffer.put((byte) lastChanged[i]);
+                }
+                manifest[k] = buffer.array();
+            }
+
+            // The first version has nothing to patch, later versions lead with the changes
+            int repeated = version == 0 || changed == count ? 0 : changed + manifests;
+            byte[][] rotation = new byte[repeated + packets.length + manifests][];
+            int position = 0;
+            if (repeated > 0) {
+                for (byte[] packet : packets) {
+                    Header header = Header.parse(packet);
+                    if (!header.isParity() && lastChanged[header.index] == version) {
+                        rotation[position++] = packet;
+                    }
+                }
+                for (byte[] packet : manifest) {
+                    rotation[position++] = packet;
+                }
+            }
+            for (byte[] packet : packets) {
+                rotation[position++] = packet;
+            }
+            for (byte[] packet : manifest) {
+                rotation[position++] = packet;
+            }
+            return rotation;
+        }
+    }
+
+    /**
+     * The header of a packet in either format.
+     */
+    static final class Header {
+        final int length;
+        final int flags;
+        final int count;
+        final int index;
+        final int hashCode;
+
+        private Header(int length, int flags, int count, int index, int hashCode) {
+            this.length = length;
+            this.flags = flags;
+            this.count = count;
+            this.index = index;
+            this.hashCode = hashCode;
+        }
+
+        /**
+         * Return the header of a packet, or null if the packet is malformed or of an unknown
+         * version. The index of a parity packet is the number of its group in both formats, the
+         * index of a manifest packet is its number.
+         */
+        static Header parse(byte[] packet) {
+            if (packet.length < LEGACY_HEADER_LENGTH) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            int first = buffer.get();
+            if ((first & VERSIONED) == 0) {
+                int count = first;
+                int index = buffer.get();
+                if (count <= 0 || index < 0) {
+                    return null;
+                }
+                int flags = index >= count ? FLAG_PARITY : 0;
+                return new Header(LEGACY_HEADER_LENGTH, flags, count, flags != 0 ? index - count : index,
+                        buffer.getInt());
+            }
+
+            if ((first >> 4 & 0x07) != VERSION || packet.length < VERSIONED_HEADER_LENGTH) {
+                return null;
+            }
+            int sequence = (buffer.get() & 0xFF) << 16 | (buffer.getShort() & 0xFFFF);
+            int count = (sequence >>> INDEX_BITS) + 1;
+            int index = sequence & INDEX_MASK;
+            int flags = first & 0x0F;
+            if ((flags & (FLAG_PARITY | FLAG_MANIFEST)) == 0 && index >= count) {
+                return null;
+            }
+            return new Header(VERSIONED_HEADER_LENGTH, flags, count, index, buffer.getInt());
+        }
+
+        boolean isParity() {
+            return (flags & FLAG_PARITY) != 0;
+        }
+
+        boolean isManifest() {
+            return (flags & FLAG_MANIFEST) != 0;
+        }
+
+        boolean isIncremental() {
+            return (flags & FLAG_INCREMENTAL) != 0;
+        }
+
+        /**
+         * Return the 16 bit stream ID of a packet in update mode.
+         */
+        int getStreamId() {
+            return hashCode >>> 16;
+        }
+
+        /**
+         * Return the 16 bit version of a packet in update mode.
+         */
+        int getVersion() {
+            return hashCode & 0xFFFF;
+        }
+    }
+
+    /**
+     * Collects the packets of one message at a time. A packet of another message replaces the
+     * message being collected, scanners keep an assembler per message hash to collect interleaved
+     * messages.
+     * <p>
+     * For a message in update mode, scanners keep an assembler per stream. A packet of a newer
+     * version keeps the chunks collected so far, the manifest of the new version tells which of
+     * them are still current.
+     */
+    static final class Assembler {
+        private int hashCode;
+        private int flags;
+        private byte[][] chunks;
+        // The version each chunk was received in and the manifest of the current version, in update mode
+        private int[] chunkVersions;
+        private int[] manifest;
+        // The bodies of the parity packets by group
+        private final Map<Integer, byte[]> parities = new HashMap<>();
+
+        /**
+         * Adds the service data of a packet.
+         *
+         * @return false if the packet is malformed or outdated and was ignored
+         */
+        boolean add(byte[] packet) {
+            Header header = Header.parse(packet);
+            return header != null && add(header, packet);
+        }
+
+        /**
+         * Adds the service data of a packet whose header was already parsed.
+         *
+         * @return false if the packet is malformed or outdated and was ignored
+         */
+        boolean add(Header header, byte[] packet) {
+            byte[] body = Arrays.copyOfRange(packet, header.length, packet.length);
+            if (header.isParity() && (body.length < PARITY_OVERHEAD || body[0] <= 0)) {
+                return false;
+            }
+            if (header.isManifest() && body.length < MANIFEST_OVERHEAD) {
+                return false;
+            }
+            int messageFlags = header.flags & ~(FLAG_PARITY | FLAG_MANIFEST);
+            if (chunks == null || flags != messageFlags) {
+                start(header, messageFlags);
+            } else if (header.isIncremental()) {
+                if (header.getStreamId() != hashCode >>> 16) {
+                    start(header, messageFlags);
+                } else if (header.getVersion() != (hashCode & 0xFFFF)) {
+                    // Serial number arithmetic, versions wrap around
+                    if (((header.getVersion() - hashCode) & 0xFFFF) >= 0x8000) {
+                        return false;
+                    }
+                    patch(header);
+                } else if (chunks.length != header.count) {
+                    return false;
+                }
+            } else if (chunks.length != header.count || hashCode != header.hashCode) {
+                start(header, messageFlags);
+            }
+
+            if (header.isParity()) {
+                parities.put(header.index, body);
+            } else if (header.isManifest()) {
+                int first = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                for (int i = MANIFEST_OVERHEAD; i < body.length && first + i - MANIFEST_OVERHEAD < chunks.length; i++) {
+                    manifest[first + i - MANIFEST_OVERHEAD] = body[i] & 0xFF;
+                }
+            } else {
+                chunks[header.index] = body;
+                if (chunkVersions != null) {
+                    chunkVersions[header.index] = header.getVersion();
+                }
+            }
+
+            // A data packet or a manifest may complete a group whose parity arrived earlier
+            for (Map.Entry<Integer, byte[]> parity : parities.entrySet()) {
+                recover(parity.getKey(), parity.getValue());
+            }
+            return true;
+        }
+
+        private void start(Header header, int messageFlags) {
+            hashCode = header.hashCode;
+            flags = messageFlags;
+            chunks = new byte[header.count][];
+            parities.clear();
+            if (header.isIncremental()) {
+                chunkVersions = new int[header.count];
+                manifest = new int[header.count];
+                Arrays.fill(manifest, -1);
+            } else {
+                chunkVersions = null;
+                manifest = null;
+            }
+        }
+
+        /**
+         * Moves to a newer version, keeping the chunks until the manifest tells they changed.
+         */
+        private void patch(Header header) {
+            hashCode = header.hashCode;
+            chunks = Arrays.copyOf(chunks, header.count);
+            chunkVersions = Arrays.copyOf(chunkVersions, header.count);
+            manifest = new int[header.count];
+            Arrays.fill(manifest, -1);
+            parities.clear();
+        }
+
+        /**
+         * Return whether the chunk is there and belongs to the current version.
+         */
+        private boolean isCurrent(int index) {
+            if (chunks[index] == null) {
+                return false;
+            }
+            if (chunkVersions == null) {
+                return true;
+            }
+            int version = hashCode & 0xFFFF;
+            if (chunkVersions[index] == version) {
+                return true;
+            }
+            if (manifest[index] == -1) {
+                return false;
+            }
+            // The chunk last changed that many versions ago, a chunk received since is current
+            int changedAgo = (version - manifest[index]) & 0xFF;
+            int receivedAgo = (version - chunkVersions[index]) & 0xFFFF;
+            return receivedAgo <= changedAgo;
+        }
+
+        /**
+         * Rebuilds the chunk of the group if it is the only one missing.
+         */
+        private void recover(int group, byte[] parity) {
+            int groupSize = parity[0];
+            int first = group * groupSize;
+            int last = Math.min(chunks.length, first + groupSize);
+            int missing = -1;
+            for (int i = first; i < last; i++) {
+                if (!isCurrent(i)) {
+                    if (missing != -1) {
+                        return;
+                    }
+                    missing = i;
+                }
+            }
+            if (missing == -1) {
+                return;
+            }
+
+            int length = parity[1] & 0xFF;
+            byte[] data = Arrays.copyOfRange(parity, PARITY_OVERHEAD, parity.length);
+            for (int i = first; i < last; i++) {
+                if (i == missing) {
+                    continue;
+                }
+                length ^= chunks[i].length;
+                for (int j = 0; j < chunks[i].length && j < data.length; j++) {
+                    data[j] ^= chunks[i][j];
+                }
+            }
+            if (length > data.length) {
+                return;
+            }
+            chunks[missing] = Arrays.copyOf(data, length);
+            if (chunkVersions != null) {
+                chunkVersions[missing] = hashCode & 0xFFFF;
+            }
+        }
+
+        void reset() {
+            chunks = null;
+            chunkVersions = null;
+            manifest = null;
+            parities.clear();
+            hashCode = 0;
+            flags = 0;
+        }
+
+        /**
+         * Return the hash of the message, or the stream ID and version in update mode.
+         */
+        int getHashCode() {
+            return hashCode;
+        }
+
+        /**
+         * Return whether the message has to be decompressed with {@link BleCompression}.
+         */
+        boolean isCompressed() {
+            return (flags & FLAG_COMPRESSED) != 0;
+        }
+
+        /**
+         * Return the number of data packets of the message, or 0 before the first packet.
+         */
+        int getCount() {
+            return chunks != null ? chunks.length : 0;
+        }
+
+        /**
+         * Return the number of data packets of the current version received, rebuilt or kept from
+         * an older version.
+         */
+        int getReceived() {
+            int received = 0;
+            for (int i = 0; chunks != null && i < chunks.length; i++) {
+                if (isCurrent(i)) {
+                    received++;
+                }
+            }
+            return received;
+        }
+
+        boolean isComplete() {
+            return chunks != null && getReceived() == chunks.length;
+        }
+
+        /**
+         * Return the message, once complete.
+         */
+        byte[] getMessage() {
+            int length = 0;
+            for (byte[] chunk : chunks) {
+                length += chunk.length;
+            }
+            ByteBuffer message = ByteBuffer.allocate(length);
+            for (byte[] chunk : chunks) {
+                message.put(chunk);
+            }
+            return message.array();
+        }
+    }
+}
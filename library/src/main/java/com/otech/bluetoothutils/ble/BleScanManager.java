@@ -3,17 +3,20 @@ package com.otech.bluetoothutils.ble;
 import android.Manifest;
 import android.app.Activity;
 import android.app.Application;
+import android.bluetooth.BluetoothAdapter;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelUuid;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.RequiresPermission;
+import android.util.Log;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
 
 import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
@@ -38,16 +41,25 @@ import no.nordicsemi.android.support.v18.scanner.ScanSettings;
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class BleScanManager {
 
+    private static final String TAG = "BleScanManager";
+    private static final int MAX_MESSAGES = 16;
+
     private final ParcelUuid serviceDataUUID;
     private final List<ScanFilter> filters;
     private final ScanSettings settings;
     private final BluetoothLeScannerCompat scanner;
     private final ScanResultInterface scanResultInterface;
     private final Activity activity;
-    private final byte[] hash = new byte[4];
-    private byte[][] data;
-    private int currentHashCode;
+    // The messages being collected by hash, or by device and stream for messages in update mode,
+    // advertisers may interleave several messages
+    private final Map<Object, BlePackets.Assembler> assemblers = new LinkedHashMap<Object, BlePackets.Assembler>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, BlePackets.Assembler> eldest) {
+            return size() > MAX_MESSAGES;
+        }
+    };
     private ScanCallback scanCallback;
+    private byte[] compressionDictionary = BleCompression.DEFAULT_DICTIONARY;
 
     /**
      * Constructs a {@link BleScanManager}
@@ -92,9 +104,14 @@ public class BleScanManager {
             }
         };
         this.filters = new ArrayList<>();
-        this.filters.add(new ScanFilter.Builder().setServiceUuid(serviceDataUUID).build());
+        // Advertisers leave out the service UUID list to make room for data, match any service data of the UUID
+        this.filters.add(new ScanFilter.Builder().setServiceData(serviceDataUUID, new byte[0]).build());
+        // Also report extended advertisements, whose packets are larger, when the controller supports them
+        boolean extended = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && BluetoothAdapter.getDefaultAdapter().isLeExtendedAdvertisingSupported();
         this.settings = new ScanSettings.Builder()
                 .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setLegacy(!extended)
                 .setUseHardwareBatchingIfSupported(true).build();
 
         this.activity.getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
@@ -155,7 +172,17 @@ public class BleScanManager {
         if (scanner != null) {
             scanner.stopScan(scanCallback);
         }
-        currentHashCode = 0;
+        assemblers.clear();
+    }
+
+    /**
+     * Sets the preset dictionary compressed messages are decompressed with, it must be the
+     * dictionary the advertiser compressed them with.
+     *
+     * @see BleAdvertiseManager.AdvertiseOptions#setCompressionDictionary(byte[])
+     */
+    public void setCompressionDictionary(byte[] compressionDictionary) {
+        this.compressionDictionary = compressionDictionary;
     }
 
     private String getError(int errorCode) {
@@ -178,58 +205,48 @@ public class BleScanManager {
             return;
 
         ScanRecord scanRecord = result.getScanRecord();
-        if (scanRecord != null) {
-            byte[] total = scanRecord.getServiceData(serviceDataUUID);
-            if (total != null) {
-                byte size = total[0];
-                byte index = total[1];
-                int hashCode = getHashCode(total);
-                if (data == null || data.length != size || hashCode != currentHashCode) {
-                    data = new byte[size][];
-                }
-                currentHashCode = hashCode;
-                byte[] serviceData = Arrays.copyOfRange(total, 6, total.length);
-                data[index] = serviceData;
-            }
+        if (scanRecord == null) {
+            return;
         }
-
-        int received = packetsReceived();
-        if (scanResultInterface != null) {
-            scanResultInterface.scanProgress(received, data.length);
+        byte[] total = scanRecord.getServiceData(serviceDataUUID);
+        BlePackets.Header header = total != null ? BlePackets.Header.parse(total) : null;
+        if (header == null) {
+            return;
         }
-
-        if (received == data.length) {
-            if (scanResultInterface != null) {
-                scanResultInterface.onScanComplete(getCompleteData(), currentHashCode);
-            }
+        // Every version of a message in update mode has another hash, its stream stays the same
+        Object key = header.isIncremental()
+                ? result.getDevice().getAddress() + "/" + header.getStreamId()
+                : Integer.valueOf(header.hashCode);
+        BlePackets.Assembler assembler = assemblers.get(key);
+        if (assembler == null) {
+            assembler = new BlePackets.Assembler();
+            assemblers.put(key, assembler);
+        }
+        if (!assembler.add(header, total)) {
+            return;
         }
-    }
-
-    private int getHashCode(byte[] total) {
-        hash[0] = total[2];
-        hash[1] = total[3];
-        hash[2] = total[4];
-        hash[3] = total[5];
-        ByteBuffer bb = ByteBuffer.wrap(hash);
-        return bb.getInt();
-    }
 
-    private String getCompleteData() {
-        StringBuilder builder = new StringBuilder();
-        for (byte[] adata : data) {
-            builder.append(new String(adata, Charset.forName("UTF-8")));
+        if (scanResultInterface != null) {
+            scanResultInterface.scanProgress(assembler.getReceived(), assembler.getCount());
         }
-        return builder.toString();
-    }
 
-    private int packetsReceived() {
-        int received = 0;
-        for (byte[] aData : data) {
-            if (aData != null) {
-                received++;
+        if (assembler.isComplete()) {
+            byte[] message = assembler.getMessage();
+            if (assembler.isCompressed()) {
+                try {
+                    message = BleCompression.decompress(message, compressionDictionary);
+                } catch (DataFormatException e) {
+                    Log.w(TAG, "Dropping message that does not decompress", e);
+                    assemblers.remove(key);
+                    return;
+                }
+            }
+            if (scanResultInterface instanceof BinaryScanResultInterface) {
+                ((BinaryScanResultInterface) scanResultInterface).onScanComplete(message, assembler.getHashCode());
+            } else if (scanResultInterface != null) {
+                scanResultInterface.onScanComplete(new String(message, Charset.forName("UTF-8")), assembler.getHashCode());
             }
         }
-        return received;
     }
 
     /**
@@ -242,4 +259,13 @@ public class BleScanManager {
 
         void onScanFailed(String message);
     }
+
+    /**
+     * Scan callbacks receiving the message as bytes, for messages advertised with
+     * {@link BleAdvertiseManager#startAdvertising(byte[])}. When the scan result interface
+     * implements it, completed messages are only reported as bytes.
+     */
+    public interface BinaryScanResultInterface extends ScanResultInterface {
+        void onScanComplete(byte[] message, int hash);
+    }
 }
@@ -0,0 +1,119 @@
+package com.otech.bluetoothutils.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interleaves the packets of several messages advertised at the same time.
+ * <p>
+ * Every message cycles through its own packets, and the messages share the advertising slots in
+ * proportion to their weights with smooth weighted round robin: a message of weight 3 next to a
+ * message of weight 1 gets 3 of every 4 slots, spread out rather than in a burst. Messages can be
+ * added, replaced and removed while the others keep their place in their rotation. Picking the
+ * next packet allocates nothing.
+ */
+final class BleScheduler<T> {
+
+    private final List<Entry<T>> entries = new ArrayList<>();
+
+    /**
+     * Adds a message, or replaces the message with the same ID.
+     *
+     * @param id      Identifies the message
+     * @param packets The packets of the message, in the order they are advertised
+     * @param weight  The share of the advertising slots of the message, at least 1
+     */
+    synchronized void put(String id, T[] packets, int weight) {
+        if (packets.length == 0 || weight < 1) {
+            throw new IllegalArgumentException("Invalid message of " + packets.length + " packets with weight " + weight);
+        }
+        Entry<T> entry = new Entry<>(id, packets, weight);
+        int index = indexOf(id);
+        if (index == -1) {
+            entries.add(entry);
+        } else {
+            entries.set(index, entry);
+        }
+        notifyAll();
+    }
+
+    synchronized boolean remove(String id) {
+        int index = indexOf(id);
+        if (index == -1) {
+            return false;
+        }
+        entries.remove(index);
+        return true;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized List<String> getIds() {
+        List<String> ids = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ids.add(entries.get(i).id);
+        }
+        return ids;
+    }
+
+    /**
+     * Waits until there is a message.
+     */
+    synchronized void await() throws InterruptedException {
+        while (entries.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Return the next packet to advertise, or null if there is no message.
+     */
+    synchronized T poll() {
+        Entry<T> best = null;
+        int total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry<T> entry = entries.get(i);
+            entry.current += entry.weight;
+            total += entry.weight;
+            if (best == null || entry.current > best.current) {
+                best = entry;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.current -= total;
+        T packet = best.packets[best.cursor];
+        best.cursor = (best.cursor + 1) % best.packets.length;
+        return packet;
+    }
+
+    private int indexOf(String id) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).id.equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Entry<T> {
+        final String id;
+        final T[] packets;
+        final int weight;
+        int current;
+        int cursor;
+
+        Entry(String id, T[] packets, int weight) {
+            this.id = id;
+            this.packets = packets;
+            this.weight = weight;
+        }
+    }
+}
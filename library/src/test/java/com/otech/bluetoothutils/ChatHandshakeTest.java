@@ -0,0 +1,168 @@
+package com.otech.bluetoothutils;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.ContextWrapper;
+import android.os.Looper;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ChatHandshakeTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static BluetoothChatManager newManager(int headerLength) {
+        BluetoothChatManager manager = new BluetoothChatManager(new ContextWrapper(null) {
+            @Override
+            public Looper getMainLooper() {
+                return null;
+            }
+        }, headerLength, null);
+        manager.setHandshakeEnabled(true);
+        return manager;
+    }
+
+    @Test
+    public void negotiate_padsToLargerHeaderLength() {
+        ChatFrameFormat wanted = new ChatFrameFormat(4, false, true, false, 4096, false);
+        ChatHandshake peer = ChatHandshake.decode(ChatHandshake.of(
+                new ChatFrameFormat(12, false, true, false, 4096, false), 12, 1024).encode());
+        assertEquals(12, peer.headerLength);
+        assertEquals(1024, peer.maxFrameSize);
+        assertEquals(12, ChatHandshake.negotiate(wanted, 4, peer).headerLength);
+    }
+
+    @Test
+    public void handshake_connectsSidesWithDifferentHeaderLengths() throws Exception {
+        BluetoothChatManager first = newManager(4);
+        BluetoothChatManager second = newManager(12);
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        second.addListener(new Listener() {
+            @Override
+            public void chatServiceMessageRead(byte[] message) {
+                received.add(message);
+            }
+        }, DIRECT_EXECUTOR);
+
+        ChatLoopback.connect(first, second);
+        try {
+            first.write(new byte[]{1, 2, 3});
+            assertArrayEquals(new byte[]{1, 2, 3}, received.poll(5, TimeUnit.SECONDS));
+            assertEquals(ChatHandshake.VERSION, second.getPeerProtocolVersion());
+        } finally {
+            first.stopAll();
+            second.stopAll();
+        }
+    }
+
+    @Test
+    public void handshake_dropsLegacyPeerWithLargerHeaderLength() throws Exception {
+        BluetoothChatManager first = newManager(12);
+        BluetoothChatManager second = newManager(12);
+        second.setHandshakeEnabled(false);
+        final BlockingQueue<String> errors = new LinkedBlockingQueue<>();
+        first.addListener(new Listener() {
+            @Override
+            public void chatServiceMessageRead(byte[] message) {
+            }
+
+            @Override
+            public void chatError(String message) {
+                errors.add(message);
+            }
+        }, DIRECT_EXECUTOR);
+
+        ChatLoopback.connect(first, second);
+        try {
+            second.write(new byte[]{1, 2, 3});
+            assertNotNull(errors.poll(5, TimeUnit.SECONDS));
+        } finally {
+            first.stopAll();
+            second.stopAll();
+        }
+    }
+
+    @Test
+    public void write_aboveMaxFrameSizeOfPeerFails() throws Exception {
+        BluetoothChatManager first = newManager(4);
+        BluetoothChatManager second = newManager(4);
+        second.setMaxFrameSize(64);
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        second.addListener(new Listener() {
+            @Override
+            public void chatServiceMessageRead(byte[] message) {
+                received.add(message);
+            }
+        }, DIRECT_EXECUTOR);
+
+        ChatLoopback.connect(first, second);
+        try {
+            first.write(new byte[65]);
+            first.write(new byte[64]);
+            // The connection survives and only the message that fits arrives
+            assertEquals(64, received.poll(5, TimeUnit.SECONDS).length);
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            first.stopAll();
+            second.stopAll();
+        }
+    }
+
+    @Test
+    public void write_afterDroppedMessageIsDelivered() throws Exception {
+        BluetoothChatManager first = newManager(4);
+        BluetoothChatManager second = newManager(4);
+        second.setMaxFrameSize(64);
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        second.addListener(new Listener() {
+            @Override
+            public void chatServiceMessageRead(byte[] message) {
+                received.add(message);
+            }
+        }, DIRECT_EXECUTOR);
+
+        ChatLoopback.connect(first, second);
+        try {
+            first.write(new byte[65]);
+            // Let the writer drop the oversized message on its own
+            Thread.sleep(200);
+            first.write(new byte[10]);
+            assertEquals(10, received.poll(5, TimeUnit.SECONDS).length);
+        } finally {
+            first.stopAll();
+            second.stopAll();
+        }
+    }
+
+    private abstract static class Listener implements BluetoothChatManager.BluetoothChatServiceListener {
+        @Override
+        public void chatServiceStateChanged(BluetoothChatManager.BluetoothChatServiceState state) {
+        }
+
+        @Override
+        public void chatServiceMessageWritten(byte[] bytes) {
+        }
+
+        @Override
+        public void chatServiceConnectedTo(BluetoothDevice device) {
+        }
+
+        @Override
+        public void chatError(String message) {
+        }
+    }
+}
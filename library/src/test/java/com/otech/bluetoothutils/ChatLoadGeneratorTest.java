@@ -0,0 +1,45 @@
+package com.otech.bluetoothutils;
+
+import android.content.ContextWrapper;
+import android.os.Looper;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatLoadGeneratorTest {
+
+    @Test
+    public void loopbackRun_receivesTheMessagesSent() throws Exception {
+        ChatLoadGenerator generator = new ChatLoadGenerator(new ContextWrapper(null) {
+            @Override
+            public Looper getMainLooper() {
+                return null;
+            }
+        }, new ChatLoadGenerator.Options()
+                .setConnections(2)
+                .setMessagesPerSecond(200)
+                .setSizeDistribution(ChatLoadGenerator.SizeDistribution.fixed(64))
+                .setReportInterval(1, TimeUnit.HOURS)
+                .setGcBeforeReport(false), null);
+
+        generator.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (generator.getReport().getMessagesReceived() < 50 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            generator.stop();
+        }
+
+        ChatLoadGenerator.Report report = generator.getReport();
+        assertTrue(report.getMessagesReceived() >= 50);
+        assertTrue(report.getMessagesReceived() <= report.getMessagesSent());
+        assertEquals(64 * report.getMessagesReceived(), report.getBytesReceived());
+        assertEquals(0, report.getErrors());
+    }
+}
@@ -0,0 +1,111 @@
+package com.otech.bluetoothutils;
+
+import android.content.ContextWrapper;
+import android.os.Looper;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChatPubSubTest {
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static BluetoothChatManager newManager(boolean messageTypes) {
+        BluetoothChatManager manager = new BluetoothChatManager(new ContextWrapper(null) {
+            @Override
+            public Looper getMainLooper() {
+                return null;
+            }
+        }, null);
+        manager.setMessageTypesEnabled(messageTypes);
+        return manager;
+    }
+
+    @Test
+    public void publish_reachesPeerSubscribedBeforeConnecting() throws Exception {
+        BluetoothChatManager first = newManager(true);
+        BluetoothChatManager second = newManager(true);
+        // The snapshot of the subscriber is sent from its executor
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ChatPubSub publisher = new ChatPubSub(DIRECT_EXECUTOR);
+        ChatPubSub subscriber = new ChatPubSub(executor);
+        publisher.add(first);
+        subscriber.add(second);
+
+        final CountDownLatch received = new CountDownLatch(1);
+        subscriber.subscribe("sensors/#", new ChatPubSub.TopicListener() {
+            @Override
+            public void onMessage(BluetoothChatManager peer, String topic, byte[] payload) {
+                received.countDown();
+            }
+        });
+        assertFalse(publisher.hasSubscribers("sensors/imu"));
+
+        ChatLoopback.connect(first, second);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!publisher.hasSubscribers("sensors/imu") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(publisher.hasSubscribers("sensors/imu"));
+            publisher.publish("sensors/imu", new byte[]{1, 2, 3});
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+        } finally {
+            first.stopAll();
+            second.stopAll();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void received_dropsMalformedRemoteFilter() throws Exception {
+        BluetoothChatManager first = newManager(true);
+        BluetoothChatManager second = newManager(true);
+        ChatPubSub publisher = new ChatPubSub(DIRECT_EXECUTOR);
+        ChatPubSub subscriber = new ChatPubSub(DIRECT_EXECUTOR);
+        publisher.add(first);
+        subscriber.add(second);
+
+        ChatLoopback.connect(first, second);
+        try {
+            byte[] filter = "sensors/#/imu".getBytes("UTF-8");
+            byte[] message = new byte[1 + filter.length];
+            message[0] = ChatPubSub.KIND_SUBSCRIBE;
+            System.arraycopy(filter, 0, message, 1, filter.length);
+            second.writeInternal(message, BluetoothChatManager.PUBSUB_MESSAGE_TYPE);
+            subscriber.subscribe("sensors/#", new ChatPubSub.TopicListener() {
+                @Override
+                public void onMessage(BluetoothChatManager peer, String topic, byte[] payload) {
+                }
+            });
+
+            // The connection keeps reading after the malformed filter
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!publisher.hasSubscribers("sensors/imu") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(publisher.hasSubscribers("sensors/imu"));
+        } finally {
+            first.stopAll();
+            second.stopAll();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_rejectsPeerWithoutMessageTypes() {
+        new ChatPubSub(DIRECT_EXECUTOR).add(newManager(false));
+    }
+}
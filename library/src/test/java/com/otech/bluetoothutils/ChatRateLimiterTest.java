@@ -0,0 +1,39 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatRateLimiterTest {
+
+    @Test
+    public void burst_isNotThrottled() throws Exception {
+        ChatRateLimiter limiter = new ChatRateLimiter(1000, 10000);
+        assertEquals(0, limiter.acquire(4000));
+        assertEquals(0, limiter.acquire(6000));
+        assertEquals(0, limiter.getThrottledNanos());
+    }
+
+    @Test
+    public void rate_isEnforcedAfterBurst() throws Exception {
+        ChatRateLimiter limiter = new ChatRateLimiter(100000, 10000);
+        limiter.acquire(10000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(5000);
+        }
+        // 20000 bytes at 100000 bytes per second
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 150);
+        assertTrue(limiter.getThrottledNanos() > 0);
+    }
+
+    @Test
+    public void zeroRate_isUnlimited() throws Exception {
+        ChatRateLimiter limiter = new ChatRateLimiter(0, 1);
+        assertEquals(0, limiter.acquire(1000000));
+    }
+}
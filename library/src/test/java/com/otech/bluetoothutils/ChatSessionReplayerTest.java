@@ -0,0 +1,53 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChatSessionReplayerTest {
+
+    private static final int FILE_HEADER_LENGTH = 13;
+
+    private static byte[] recordSession() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChatSessionRecorder recorder = new ChatSessionRecorder(out);
+        recorder.record(ChatSessionRecorder.Direction.OUTBOUND, 7, new byte[]{1, 2, 3});
+        recorder.record(ChatSessionRecorder.Direction.INBOUND, new byte[200]);
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void readFrame_keepsTheMessageType() throws Exception {
+        ChatSessionReplayer replayer = new ChatSessionReplayer(new ByteArrayInputStream(recordSession()));
+        ChatSessionReplayer.Frame first = replayer.readFrame();
+        assertEquals(ChatSessionRecorder.Direction.OUTBOUND, first.getDirection());
+        assertEquals(7, first.getMessageType());
+        assertArrayEquals(new byte[]{1, 2, 3}, first.getBytes());
+        ChatSessionReplayer.Frame second = replayer.readFrame();
+        assertEquals(BluetoothChatManager.DEFAULT_MESSAGE_TYPE, second.getMessageType());
+        assertEquals(200, second.getBytes().length);
+        assertNull(replayer.readFrame());
+    }
+
+    @Test
+    public void readFrame_endsAtAPartialFrameWhereverItIsCut() throws Exception {
+        byte[] session = recordSession();
+        for (int length = FILE_HEADER_LENGTH; length < session.length; length++) {
+            ChatSessionReplayer replayer = new ChatSessionReplayer(
+                    new ByteArrayInputStream(Arrays.copyOf(session, length)));
+            int frames = 0;
+            while (replayer.readFrame() != null) {
+                frames++;
+            }
+            assertTrue(frames < 2);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatTelemetryBatchTest {
+
+    @Test
+    public void encode_decodesToSameRecords() throws Exception {
+        Random random = new Random(42);
+        ChatTelemetryBatch batch = new ChatTelemetryBatch(2, 2);
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            timestamp += random.nextInt(20) - 2;
+            int row = batch.addRecord(timestamp);
+            batch.setInt(row, 0, random.nextInt());
+            batch.setInt(row, 1, i - 500);
+            batch.setFloat(row, 0, random.nextFloat());
+            batch.setFloat(row, 1, i == 7 ? Float.NaN : -i / 3f);
+        }
+
+        ChatTelemetryBatch decoded = ChatTelemetryBatch.decode(batch.encode());
+        assertEquals(batch.size(), decoded.size());
+        assertEquals(2, decoded.getIntColumnCount());
+        assertEquals(2, decoded.getFloatColumnCount());
+        for (int row = 0; row < batch.size(); row++) {
+            assertEquals(batch.getTimestamp(row), decoded.getTimestamp(row));
+            assertEquals(batch.getInt(row, 0), decoded.getInt(row, 0));
+            assertEquals(batch.getInt(row, 1), decoded.getInt(row, 1));
+            assertEquals(Float.floatToIntBits(batch.getFloat(row, 0)), Float.floatToIntBits(decoded.getFloat(row, 0)));
+            assertEquals(Float.floatToIntBits(batch.getFloat(row, 1)), Float.floatToIntBits(decoded.getFloat(row, 1)));
+        }
+    }
+
+    @Test
+    public void steadySamples_encodeCompactly() throws Exception {
+        ChatTelemetryBatch batch = new ChatTelemetryBatch(1, 0);
+        for (int i = 0; i < 100; i++) {
+            int row = batch.addRecord(1500000000000L + i * 20);
+            batch.setInt(row, 0, 60 + i % 3);
+        }
+        // A timestamp delta and a small int take a byte each
+        assertTrue(batch.encode().length < 100 * 2 + 16);
+    }
+
+    @Test
+    public void clear_keepsColumns() throws Exception {
+        ChatTelemetryBatch batch = new ChatTelemetryBatch(1, 1);
+        batch.addRecord(1);
+        batch.clear();
+        assertEquals(0, ChatTelemetryBatch.decode(batch.encode()).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBatch_isRejected() throws Exception {
+        ChatTelemetryBatch batch = new ChatTelemetryBatch(1, 1);
+        batch.addRecord(1);
+        batch.addRecord(2);
+        byte[] encoded = batch.encode();
+        byte[] truncated = new byte[encoded.length - 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        ChatTelemetryBatch.decode(truncated);
+    }
+}
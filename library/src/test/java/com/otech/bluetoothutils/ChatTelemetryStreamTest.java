@@ -0,0 +1,51 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatTelemetryStreamTest {
+
+    @Test
+    public void delta_rebuildsRecord() throws Exception {
+        Random random = new Random(42);
+        byte[] previous = new byte[64];
+        random.nextBytes(previous);
+        for (int i = 0; i < 100; i++) {
+            byte[] record = previous.clone();
+            for (int j = random.nextInt(8); j > 0; j--) {
+                record[random.nextInt(record.length)] = (byte) random.nextInt();
+            }
+            byte[] delta = ChatTelemetryStream.encodeDelta(previous, record);
+            assertArrayEquals(record, ChatTelemetryStream.applyDelta(previous, delta, 0));
+            previous = record;
+        }
+    }
+
+    @Test
+    public void delta_ofSameRecordIsEmpty() throws Exception {
+        byte[] record = new byte[]{1, 2, 3, 4};
+        assertEquals(0, ChatTelemetryStream.encodeDelta(record, record.clone()).length);
+    }
+
+    @Test
+    public void delta_ofSmallChangeIsSmall() throws Exception {
+        byte[] previous = new byte[128];
+        byte[] record = previous.clone();
+        record[100] = 7;
+        byte[] delta = ChatTelemetryStream.encodeDelta(previous, record);
+        assertTrue(delta.length <= 4);
+    }
+
+    @Test(expected = ChatFrameException.class)
+    public void delta_outsideRecordIsRejected() throws Exception {
+        byte[] longer = new byte[16];
+        longer[15] = 1;
+        byte[] delta = ChatTelemetryStream.encodeDelta(new byte[16], longer);
+        ChatTelemetryStream.applyDelta(new byte[8], delta, 0);
+    }
+}
@@ -0,0 +1,42 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    @Test
+    public void checkValue_isCorrect() throws Exception {
+        byte[] bytes = "123456789".getBytes(Charset.forName("US-ASCII"));
+
+        Crc32c crc = new Crc32c();
+        crc.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        Checksum platform = Crc32c.newChecksum();
+        platform.update(bytes, 0, bytes.length);
+        assertEquals(0xE3069283L, platform.getValue());
+    }
+
+    @Test
+    public void slicedUpdate_matchesByteUpdate() throws Exception {
+        Random random = new Random(42);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+
+            Crc32c sliced = new Crc32c();
+            sliced.update(bytes, 0, length);
+            Crc32c single = new Crc32c();
+            for (byte b : bytes) {
+                single.update(b);
+            }
+            assertEquals(single.getValue(), sliced.getValue());
+        }
+    }
+}
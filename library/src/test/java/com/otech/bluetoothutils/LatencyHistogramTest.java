@@ -0,0 +1,83 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static void recordMicros(LatencyHistogram histogram, long micros) {
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    @Test
+    public void percentile_ofSmallValuesIsExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 0; micros < 8; micros++) {
+            recordMicros(histogram, micros);
+        }
+        assertEquals(0, histogram.getPercentileMicros(0));
+        assertEquals(3, histogram.getPercentileMicros(50));
+        assertEquals(7, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void percentile_isTheUpperBoundOfTheBucket() {
+        for (long micros : new long[]{8, 15, 16, 17, 100, 1000, 1023, 1024, 123456789}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            recordMicros(histogram, micros);
+            // A larger sample keeps the result from being capped at the maximum
+            recordMicros(histogram, micros * 4);
+            long upperBound = histogram.getPercentileMicros(50);
+            assertTrue(micros + " -> " + upperBound, upperBound >= micros);
+            assertTrue(micros + " -> " + upperBound, upperBound <= micros + micros / 8);
+        }
+    }
+
+    @Test
+    public void percentile_bucketBoundaries() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        recordMicros(histogram, 16);
+        recordMicros(histogram, 17);
+        recordMicros(histogram, 18);
+        recordMicros(histogram, 1000);
+        // 16 and 17 share a bucket, 18 starts the next one
+        assertEquals(17, histogram.getPercentileMicros(25));
+        assertEquals(17, histogram.getPercentileMicros(50));
+        assertEquals(19, histogram.getPercentileMicros(75));
+        // The last bucket is capped at the largest sample
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void percentile_usesTheNearestRank() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 100; micros++) {
+            recordMicros(histogram, micros);
+        }
+        // The 50th sample is 50, in the bucket 48..51
+        assertEquals(51, histogram.getPercentileMicros(50));
+        // The 51st sample is 51, still in the same bucket
+        assertEquals(51, histogram.getPercentileMicros(50.5));
+        // The 99th sample is 99, in the bucket 96..103 capped at the maximum
+        assertEquals(100, histogram.getPercentileMicros(99));
+        assertEquals(1, histogram.getPercentileMicros(0));
+        assertEquals(100, histogram.getMaxMicros());
+        assertEquals(50, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void record_clampsNegativeValuesAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+        histogram.record(-5000);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(100));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+}
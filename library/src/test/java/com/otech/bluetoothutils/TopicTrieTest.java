@@ -0,0 +1,43 @@
+package com.otech.bluetoothutils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TopicTrieTest {
+
+    @Test
+    public void match_findsExactAndWildcardFilters() throws Exception {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("sensors/imu/accel", "exact");
+        trie.add("sensors/+/accel", "single");
+        trie.add("sensors/#", "multi");
+        trie.add("#", "all");
+        trie.add("status", "other");
+
+        assertEquals(new HashSet<>(Arrays.asList("exact", "single", "multi", "all")), trie.match("sensors/imu/accel"));
+        assertEquals(new HashSet<>(Arrays.asList("single", "multi", "all")), trie.match("sensors/gps/accel"));
+        assertEquals(new HashSet<>(Arrays.asList("multi", "all")), trie.match("sensors"));
+        assertEquals(new HashSet<>(Arrays.asList("other", "all")), trie.match("status"));
+    }
+
+    @Test
+    public void remove_prunesEmptyNodes() throws Exception {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/b/c", "x");
+        trie.add("a/#", "y");
+        trie.remove("a/b/c", "x");
+        trie.removeAll("y");
+        assertTrue(trie.isEmpty());
+        assertTrue(trie.match("a/b/c").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multiLevelWildcard_mustBeLast() throws Exception {
+        new TopicTrie<String>().add("a/#/b", "x");
+    }
+}
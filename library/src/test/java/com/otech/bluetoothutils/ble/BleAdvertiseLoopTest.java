@@ -0,0 +1,122 @@
+package com.otech.bluetoothutils.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BleAdvertiseLoopTest {
+
+    /**
+     * Records the packets advertised in each slot and interrupts the loop after a number of
+     * packets.
+     */
+    private static class StandInAdvertiser implements BleAdvertiser<String> {
+        final List<List<String>> advertised = new ArrayList<>();
+        final boolean[] failed;
+        final int limit;
+        int count;
+        boolean closed;
+
+        StandInAdvertiser(int slots, int limit) {
+            this.failed = new boolean[slots];
+            this.limit = limit;
+            for (int i = 0; i < slots; i++) {
+                advertised.add(new ArrayList<String>());
+            }
+        }
+
+        @Override
+        public int getSlotCount() {
+            return failed.length;
+        }
+
+        @Override
+        public boolean isAvailable(int slot) {
+            return !failed[slot];
+        }
+
+        @Override
+        public int getMaxServiceDataLength() {
+            return 27;
+        }
+
+        @Override
+        public String prepare(byte[] serviceData, long dwellMillis) {
+            return new String(serviceData);
+        }
+
+        @Override
+        public void advertise(int slot, String packet) {
+            advertised.get(slot).add(packet);
+            if (++count == limit) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void stop(int slot) {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static byte[][] packets(String... names) {
+        byte[][] packets = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            packets[i] = names[i].getBytes();
+        }
+        return packets;
+    }
+
+    private static void run(BleAdvertiseLoop<String> loop) throws Exception {
+        try {
+            loop.run();
+        } catch (InterruptedException expected) {
+        }
+    }
+
+    @Test
+    public void run_spreadsPacketsOverAllSlots() throws Exception {
+        StandInAdvertiser advertiser = new StandInAdvertiser(3, 6);
+        BleAdvertiseLoop<String> loop = new BleAdvertiseLoop<>(advertiser);
+        loop.put("status", packets("a", "b", "c", "d", "e", "f"), 1, 1);
+        run(loop);
+
+        assertEquals("[a, d]", advertiser.advertised.get(0).toString());
+        assertEquals("[b, e]", advertiser.advertised.get(1).toString());
+        assertEquals("[c, f]", advertiser.advertised.get(2).toString());
+        assertTrue(advertiser.closed);
+    }
+
+    @Test
+    public void run_neverAdvertisesAPacketInTwoSlots() throws Exception {
+        StandInAdvertiser advertiser = new StandInAdvertiser(2, 3);
+        BleAdvertiseLoop<String> loop = new BleAdvertiseLoop<>(advertiser);
+        loop.put("status", packets("a"), 1, 1);
+        run(loop);
+
+        assertEquals("[a, a, a]", advertiser.advertised.get(0).toString());
+        assertTrue(advertiser.advertised.get(1).isEmpty());
+    }
+
+    @Test
+    public void run_skipsFailedSlotsAndStopsWhenAllFailed() throws Exception {
+        StandInAdvertiser advertiser = new StandInAdvertiser(2, 4);
+        advertiser.failed[0] = true;
+        BleAdvertiseLoop<String> loop = new BleAdvertiseLoop<>(advertiser);
+        loop.put("status", packets("a", "b"), 1, 1);
+        run(loop);
+        assertEquals("[a, b, a, b]", advertiser.advertised.get(1).toString());
+
+        advertiser.failed[1] = true;
+        loop.run();
+        assertTrue(advertiser.closed);
+    }
+}
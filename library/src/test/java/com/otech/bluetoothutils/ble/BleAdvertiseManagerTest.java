@@ -0,0 +1,43 @@
+package com.otech.bluetoothutils.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class BleAdvertiseManagerTest {
+
+    private static final UUID UUID_16 = UUID.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_32 = UUID.fromString("1234feaa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_128 = UUID.fromString("7d2ea28a-f7bd-485a-bd9d-92ad6ecfe93e");
+
+    @Test
+    public void getUuidLength_usesTheShortestAlias() {
+        assertEquals(2, BleAdvertiseManager.getUuidLength(UUID_16));
+        assertEquals(4, BleAdvertiseManager.getUuidLength(UUID_32));
+        assertEquals(16, BleAdvertiseManager.getUuidLength(UUID_128));
+    }
+
+    @Test
+    public void getMaxServiceDataLength_fillsTheLegacyAdvertisement() {
+        int length = BleAdvertiseManager.LEGACY_ADVERTISE_LENGTH;
+        assertEquals(27, BleAdvertiseManager.getMaxServiceDataLength(UUID_16, false, length));
+        assertEquals(25, BleAdvertiseManager.getMaxServiceDataLength(UUID_32, false, length));
+        assertEquals(13, BleAdvertiseManager.getMaxServiceDataLength(UUID_128, false, length));
+    }
+
+    @Test
+    public void getMaxServiceDataLength_leavesRoomForTheServiceUuid() {
+        int length = BleAdvertiseManager.LEGACY_ADVERTISE_LENGTH;
+        assertEquals(23, BleAdvertiseManager.getMaxServiceDataLength(UUID_16, true, length));
+        assertEquals(19, BleAdvertiseManager.getMaxServiceDataLength(UUID_32, true, length));
+        assertEquals(209, BleAdvertiseManager.getMaxServiceDataLength(UUID_128, true,
+                BleAdvertiseManager.MAX_EXTENDED_ADVERTISE_LENGTH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getMaxServiceDataLength_rejectsNoRoomForData() {
+        BleAdvertiseManager.getMaxServiceDataLength(UUID_128, true, BleAdvertiseManager.LEGACY_ADVERTISE_LENGTH);
+    }
+}
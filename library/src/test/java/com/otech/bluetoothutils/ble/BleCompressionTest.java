@@ -0,0 +1,49 @@
+package com.otech.bluetoothutils.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleCompressionTest {
+
+    private static final byte[] MESSAGE = "{\"id\":\"sensor-7\",\"type\":\"status\",\"battery\":87,\"temperature\":21.5,\"alert\":false}"
+            .getBytes(Charset.forName("UTF-8"));
+
+    @Test
+    public void compress_shrinksShortMessagesWithTheDictionary() throws Exception {
+        byte[] compressed = BleCompression.compress(MESSAGE, BleCompression.DEFAULT_DICTIONARY);
+        byte[] withoutDictionary = BleCompression.compress(MESSAGE, new byte[0]);
+        assertTrue(compressed.length + " bytes", compressed.length < MESSAGE.length * 2 / 3);
+        assertTrue(compressed.length < withoutDictionary.length);
+        assertArrayEquals(MESSAGE, BleCompression.decompress(compressed, BleCompression.DEFAULT_DICTIONARY));
+    }
+
+    @Test
+    public void decompress_failsOrDiffersWithAnotherDictionary() throws Exception {
+        byte[] compressed = BleCompression.compress(MESSAGE, BleCompression.DEFAULT_DICTIONARY);
+        try {
+            byte[] other = BleCompression.decompress(compressed, "another dictionary".getBytes(Charset.forName("UTF-8")));
+            assertFalse(Arrays.equals(MESSAGE, other));
+        } catch (java.util.zip.DataFormatException expected) {
+        }
+    }
+
+    @Test
+    public void packets_carryTheCompressedFlag() throws Exception {
+        byte[] compressed = BleCompression.compress(MESSAGE, BleCompression.DEFAULT_DICTIONARY);
+        byte[][] packets = BlePackets.encode(compressed, 1, 27, 0, BlePackets.FLAG_COMPRESSED);
+
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        for (byte[] packet : packets) {
+            assembler.add(packet);
+        }
+        assertTrue(assembler.isComplete());
+        assertTrue(assembler.isCompressed());
+        assertArrayEquals(MESSAGE, BleCompression.decompress(assembler.getMessage(), BleCompression.DEFAULT_DICTIONARY));
+    }
+}
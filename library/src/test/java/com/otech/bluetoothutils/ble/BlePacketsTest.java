@@ -0,0 +1,189 @@
+package com.otech.bluetoothutils.ble;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlePacketsTest {
+
+    private static final int PACKET_LENGTH = 27;
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        new Random(length).nextBytes(message);
+        return message;
+    }
+
+    @Test
+    public void encode_fillsEveryPacket() throws Exception {
+        byte[] message = "Grüße aus Zürich, über Bluetooth".getBytes(Charset.forName("UTF-8"));
+        byte[][] packets = BlePackets.encode(message, 42, PACKET_LENGTH, 0);
+        assertEquals(2, packets.length);
+        assertEquals(PACKET_LENGTH, packets[0].length);
+
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        assembler.add(packets[1]);
+        assertFalse(assembler.isComplete());
+        assembler.add(packets[0]);
+        assertTrue(assembler.isComplete());
+        assertEquals(42, assembler.getHashCode());
+        assertArrayEquals(message, assembler.getMessage());
+    }
+
+    @Test
+    public void parity_rebuildsOneMissingPacketPerGroup() throws Exception {
+        byte[] message = message(200);
+        byte[][] packets = BlePackets.encode(message, 7, PACKET_LENGTH, 4);
+        // 11 data packets of 19 bytes in groups of 4, 4, 3, each followed by its parity packet
+        assertEquals(14, packets.length);
+
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        // Drop the first packet of the first group and the last data packet, parity first
+        assembler.add(packets[4]);
+        for (int i = 0; i < packets.length; i++) {
+            if (i != 0 && i != 4 && i != 12) {
+                assembler.add(packets[i]);
+            }
+        }
+        assertTrue(assembler.isComplete());
+        assertArrayEquals(message, assembler.getMessage());
+    }
+
+    @Test
+    public void parity_cannotRebuildTwoMissingPackets() throws Exception {
+        byte[][] packets = BlePackets.encode(message(200), 7, PACKET_LENGTH, 4);
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        for (int i = 2; i < packets.length; i++) {
+            assembler.add(packets[i]);
+        }
+        assertEquals(9, assembler.getReceived());
+        assertFalse(assembler.isComplete());
+    }
+
+    @Test
+    public void add_startsOverOnAnotherMessage() throws Exception {
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        assembler.add(BlePackets.encode(message(100), 1, PACKET_LENGTH, 0)[0]);
+        byte[] other = message(10);
+        assembler.add(BlePackets.encode(other, 2, PACKET_LENGTH, 0)[0]);
+        assertTrue(assembler.isComplete());
+        assertArrayEquals(other, assembler.getMessage());
+        assertFalse(assembler.add(new byte[3]));
+    }
+
+    @Test
+    public void encode_switchesToVersionedHeaderBeyond127Packets() throws Exception {
+        byte[] small = message(127 * 21);
+        assertEquals(127, BlePackets.encode(small, 0, PACKET_LENGTH, 0).length);
+
+        byte[] large = message(10000);
+        byte[][] packets = BlePackets.encode(large, 3, PACKET_LENGTH, 8);
+        // 589 data packets of 17 bytes and 74 parity packets
+        assertEquals(663, packets.length);
+        BlePackets.Header last = BlePackets.Header.parse(packets[packets.length - 1]);
+        assertTrue(last.isParity());
+        assertEquals(589, last.count);
+        assertEquals(73, last.index);
+
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        for (int i = 0; i < packets.length; i++) {
+            // Lose one packet of every group of 9
+            if (i % 9 != 4) {
+                assembler.add(packets[i]);
+            }
+        }
+        assertTrue(assembler.isComplete());
+        assertArrayEquals(large, assembler.getMessage());
+    }
+
+    @Test
+    public void parse_ignoresUnknownVersions() throws Exception {
+        byte[] packet = BlePackets.encode(message(5000), 0, PACKET_LENGTH, 0)[0];
+        packet[0] = (byte) (packet[0] + 0x10);
+        assertNull(BlePackets.Header.parse(packet));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsTooManyPackets() throws Exception {
+        BlePackets.encode(message(4097 * 19), 0, PACKET_LENGTH, 0);
+    }
+
+    @Test
+    public void stream_patchesChangedChunks() throws Exception {
+        byte[] message = message(400);
+        BlePackets.Stream stream = new BlePackets.Stream(7);
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        for (byte[] packet : stream.update(message, PACKET_LENGTH, 0)) {
+            assembler.add(packet);
+        }
+        assertTrue(assembler.isComplete());
+
+        byte[] next = message.clone();
+        next[100]++;
+        next[101]++;
+        byte[][] rotation = stream.update(next, PACKET_LENGTH, 0);
+        // The changed chunk and the two manifest packets lead the rotation
+        assertEquals(5, BlePackets.Header.parse(rotation[0]).index);
+        assertTrue(BlePackets.Header.parse(rotation[1]).isManifest());
+        assertTrue(BlePackets.Header.parse(rotation[2]).isManifest());
+        assertTrue(assembler.add(rotation[0]));
+        assertTrue(assembler.add(rotation[1]));
+        assertFalse(assembler.isComplete());
+        assertTrue(assembler.add(rotation[2]));
+        assertTrue(assembler.isComplete());
+        assertEquals(7 << 16 | 1, assembler.getHashCode());
+        assertArrayEquals(next, assembler.getMessage());
+    }
+
+    @Test
+    public void stream_waitsForChunksChangedInSkippedVersions() throws Exception {
+        byte[] message = message(400);
+        BlePackets.Stream stream = new BlePackets.Stream(7);
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        byte[][] first = stream.update(message, PACKET_LENGTH, 0);
+        for (byte[] packet : first) {
+            assembler.add(packet);
+        }
+
+        message[0]++;
+        stream.update(message, PACKET_LENGTH, 0);
+        message[300]++;
+        byte[][] rotation = stream.update(message, PACKET_LENGTH, 0);
+        assembler.add(rotation[0]);
+        assembler.add(rotation[1]);
+        assembler.add(rotation[2]);
+        // The first chunk changed in the version this scanner missed
+        assertFalse(assembler.isComplete());
+        assertFalse(assembler.add(first[0]));
+        for (byte[] packet : rotation) {
+            if (BlePackets.Header.parse(packet).index == 0) {
+                assembler.add(packet);
+            }
+        }
+        assertTrue(assembler.isComplete());
+        assertArrayEquals(message, assembler.getMessage());
+    }
+
+    @Test
+    public void stream_recoversLostPacketOfNewScanner() throws Exception {
+        byte[] message = message(400);
+        BlePackets.Stream stream = new BlePackets.Stream(7);
+        stream.update(message, PACKET_LENGTH, 4);
+        message = message(500);
+        byte[][] rotation = stream.update(message, PACKET_LENGTH, 4);
+
+        BlePackets.Assembler assembler = new BlePackets.Assembler();
+        for (int i = 1; i < rotation.length; i++) {
+            assembler.add(rotation[i]);
+        }
+        assertTrue(assembler.isComplete());
+        assertArrayEquals(message, assembler.getMessage());
+    }
+}
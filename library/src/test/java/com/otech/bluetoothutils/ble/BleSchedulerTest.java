@@ -0,0 +1,44 @@
+package com.otech.bluetoothutils.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BleSchedulerTest {
+
+    @Test
+    public void poll_sharesSlotsByWeight() throws Exception {
+        BleScheduler<String> scheduler = new BleScheduler<>();
+        scheduler.put("status", new String[]{"s0", "s1"}, 3);
+        scheduler.put("alert", new String[]{"a0"}, 1);
+
+        StringBuilder slots = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            slots.append(scheduler.poll()).append(' ');
+        }
+        // Each message cycles through its own packets, spread out rather than in bursts
+        assertEquals("s0 s1 a0 s0 s1 s0 a0 s1 ", slots.toString());
+    }
+
+    @Test
+    public void remove_keepsTheOtherMessagesRotating() throws Exception {
+        BleScheduler<String> scheduler = new BleScheduler<>();
+        scheduler.put("status", new String[]{"s0", "s1", "s2"}, 1);
+        scheduler.put("config", new String[]{"c0"}, 1);
+        assertEquals("s0", scheduler.poll());
+        assertEquals("c0", scheduler.poll());
+
+        scheduler.remove("config");
+        assertEquals("s1", scheduler.poll());
+        assertEquals("s2", scheduler.poll());
+        assertEquals(Arrays.asList("status"), scheduler.getIds());
+
+        scheduler.put("status", new String[]{"n0"}, 1);
+        assertEquals("n0", scheduler.poll());
+        scheduler.clear();
+        assertNull(scheduler.poll());
+    }
+}